@@ -1,23 +1,128 @@
-import java.io.*;
-import java.net.*;
-
-class Assignment_1_Client{
-    public static void main(String args[])
-    {
-        try{
-            Socket skt = new Socket("localhost", 1234);
-            BufferedReader in = new BufferedReader(new 
-            InputStreamReader(skt.getInputStream()));
-            System.out.print("Received string: '");
-            while(!in.ready()){}
-
-            System.out.println(in.readLine());//Read one line and output it
-            System.out.print("'\n");
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client for Assignment_1_Server. Every read blocks until data arrives, so a waiting client
+ * uses no CPU. Against a greeting-only server it prints the greeting as before; against a
+ * file it receives the whole payload and reports its rate and CPU cost.
+ *
+ *   java Assignment_1_Client [host] [--out path] [--clients n]
+ *
+ * --out saves the file, with FileChannel.transferFrom straight from the socket; otherwise the
+ * bytes are read into one direct buffer and dropped. --clients runs n downloads at once, each
+ * on its own thread, the way many subscribers would; with --out each gets its own file,
+ * path.0, path.1 and so on.
+ */
+public class Assignment_1_Client {
+    private static final int BUFFER = 1 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = "localhost";
+        Path out = null;
+        int clients = 1;
+        for (int i = 0; i < args.length; i++) {
+            if ("--out".equals(args[i]) && i + 1 < args.length) out = Paths.get(args[++i]);
+            else if ("--clients".equals(args[i]) && i + 1 < args.length) clients = Integer.parseInt(args[++i]);
+            else host = args[i];
+        }
+
+        LongAdder bytes = new LongAdder();
+        LongAdder cpuNanos = new LongAdder();
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            String h = host;
+            Path target = out == null || clients == 1 ? out : Paths.get(out + "." + c);
+            threads[c] = new Thread(() -> {
+                try {
+                    long cpuStart = Assignment_1_Server.threadCpuNanos();
+                    bytes.add(receive(h, target));
+                    if (cpuStart >= 0) cpuNanos.add(Assignment_1_Server.threadCpuNanos() - cpuStart);
+                } catch (IOException e) {
+                    failed.set(true);
+                    System.out.println("Whoops! " + e.getMessage());
+                }
+            }, "bulk-client-" + c);
+            threads[c].start();
+        }
+        for (Thread t : threads) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (bytes.sum() > 0) {
+            double gb = bytes.sum() / 1e9;
+            System.out.printf("%d client%s, %,d bytes in %.3f s, %.1f MB/s, client CPU %.3f s/GB%n",
+                    clients, clients == 1 ? "" : "s", bytes.sum(), seconds, bytes.sum() / 1e6 / seconds, cpuNanos.sum() / 1e9 / gb);
         }
-            catch(Exception e){
-            System.out.print("Whoops!! brayo hio imekwara \n");
-    
+        if (failed.get()) System.exit(1);
+    }
+
+    // One connection; returns the file bytes received, 0 for a greeting
+    static long receive(String host, Path target) throws IOException {
+        return receive(new InetSocketAddress(host, Assignment_1_Server.PORT), target);
+    }
+
+    static long receive(InetSocketAddress server, Path target) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(server)) {
+            String first = readLine(socket);
+            if (!first.startsWith("FILE ")) {
+                System.out.println("Received string: '" + first + "'");
+                return 0;
+            }
+            String[] header = first.split(" ", 3);
+            long size = Long.parseLong(header[1]);
+            long received = target == null ? drain(socket, size) : save(socket, size, target);
+            if (received < size) throw new IOException("Connection closed after " + received + " of " + size + " bytes");
+            return received;
+        }
+    }
+
+    private static long drain(SocketChannel socket, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+        long received = 0;
+        while (received < size) {
+            buf.clear();
+            int n = socket.read(buf);
+            if (n < 0) break;
+            received += n;
+        }
+        return received;
+    }
+
+    private static long save(SocketChannel socket, long size, Path target) throws IOException {
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long received = 0;
+            while (received < size) {
+                long n = file.transferFrom(socket, received, size - received);
+                // transferFrom cannot tell end of stream from an empty read on a blocking socket
+                if (n == 0) break;
+                received += n;
+            }
+            return received;
+        }
+    }
 
+    // The header line, read a byte at a time so none of the payload is consumed with it
+    private static String readLine(SocketChannel socket) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (socket.read(one) < 0) break;
+            byte b = one.get(0);
+            if (b == '\n') break;
+            line.write(b);
         }
+        return line.toString(StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
@@ -1,25 +1,148 @@
-import java.net.*;
-import java.io.*;
-
-class Assignment_1_Server{
-    public static void main(String[] args)
-    {
-        String data = "  WINNING Class Presentation - Boop Toobie ornaught toobie. Our REG 20/00510.\n";
-        try{
-            ServerSocket srvr = new ServerSocket(1234);
-            Socket skt = srvr.accept();
-            System.out.print("Dear Brian Server has connected!!!\n");
-            PrintWriter out = new
-            PrintWriter(skt.getOutputStream(), true);
-            System.out.print("Sending string:" + data + "'\n");
-            out.print(data);
-            out.flush();
-            out.close();
-            skt.close();
-            srvr.close();
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulk distribution service: every client that connects is pushed the whole of one file,
+ * any number of clients at once, each on its own handler thread (see ChatExecutors).
+ *
+ *   java Assignment_1_Server [file]
+ *
+ * A client receives "FILE size name\n" and then exactly size bytes, and the server closes
+ * the connection. The file is opened afresh for each client, so replacing it by renaming a
+ * new snapshot over it never tears a transfer in progress: clients already connected finish
+ * the old one. Without a file the server sends the original one-line greeting instead.
+ *
+ * -Dbulk.mode picks how the bytes reach the socket:
+ *   transferTo  FileChannel.transferTo, sendfile on Linux; the data never enters the JVM
+ *   mmap        the file mapped in chunks and written from the mapping
+ *   copy        read into a heap buffer and written out, the ordinary stream way, as a baseline
+ *
+ * Each transfer is logged with its rate and the CPU time its thread spent, as seconds per GB.
+ */
+public class Assignment_1_Server {
+    public static final int PORT = 1234;
+    static final String MODE = System.getProperty("bulk.mode", "transferTo");
+    static final String GREETING = "  WINNING Class Presentation - Boop Toobie ornaught toobie. Our REG 20/00510.\n";
+    private static final long MAP_CHUNK = 1L << 30;
+    private static final int COPY_BUFFER = 64 << 10;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final LongAdder cpuNanos = new LongAdder();
+
+    public static void main(String[] args) throws IOException {
+        Path file = args.length > 0 ? Paths.get(args[0]) : null;
+        if (!"transferTo".equals(MODE) && !"mmap".equals(MODE) && !"copy".equals(MODE)) {
+            throw new IllegalArgumentException("Unknown bulk.mode " + MODE + ", expected transferTo, mmap or copy");
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(PORT), 1024);
+            ChatLog.info("Bulk server starting on port " + PORT + ", "
+                    + (file == null ? "greeting only" : "serving " + file + " (" + MODE + ")"));
+            serve(server, file, MODE);
+        }
+    }
+
+    // Accepts clients until the server channel is closed
+    static void serve(ServerSocketChannel server, Path file, String mode) {
+        ExecutorService executor = ChatExecutors.newHandlerExecutor();
+        try {
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.submit(() -> send(client, file, mode));
+            }
+        } catch (IOException e) {
+            if (server.isOpen()) ChatLog.error("Server error: " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Bytes of file data delivered and handler CPU time spent on them, since the start
+    static long bytesSent() {
+        return bytesSent.sum();
+    }
+
+    static long cpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    private static void send(SocketChannel channel, Path path, String mode) {
+        try (SocketChannel client = channel) {
+            ChatLog.debug("Client connected: " + client.getRemoteAddress());
+            if (path == null) {
+                ByteBuffer greeting = ByteBuffer.wrap(GREETING.getBytes(StandardCharsets.UTF_8));
+                while (greeting.hasRemaining()) client.write(greeting);
+                return;
+            }
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = file.size();
+                ByteBuffer header = ByteBuffer.wrap(("FILE " + size + " " + path.getFileName() + "\n").getBytes(StandardCharsets.UTF_8));
+                long cpuStart = threadCpuNanos();
+                long start = System.nanoTime();
+                while (header.hasRemaining()) client.write(header);
+                transfer(file, size, client, mode);
+                long elapsed = System.nanoTime() - start;
+                long cpu = threadCpuNanos() - cpuStart;
+                bytesSent.add(size);
+                if (cpuStart >= 0) cpuNanos.add(cpu);
+                ChatLog.info(String.format("Sent %,d bytes to %s in %.3f s, %.1f MB/s, CPU %.3f s/GB",
+                        size, client.getRemoteAddress(), elapsed / 1e9, size * 1e3 / Math.max(1, elapsed),
+                        cpuStart < 0 ? Double.NaN : cpu / 1e9 / (size / 1e9)));
+            }
+        } catch (IOException e) {
+            ChatLog.info("Transfer aborted: " + e.getMessage());
         }
-        catch(Exception e ){ System.out.print("Whoops! it didnt work! \n");
     }
 
+    static void transfer(FileChannel file, long size, SocketChannel out, String mode) throws IOException {
+        switch (mode) {
+            case "transferTo":
+                for (long pos = 0; pos < size; ) {
+                    long n = file.transferTo(pos, size - pos, out);
+                    // the file shrank under us; only happens if it is rewritten in place
+                    if (n <= 0 && pos >= file.size()) throw new IOException("File truncated at " + pos);
+                    pos += n;
+                }
+                break;
+            case "mmap":
+                for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                    MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                    while (map.hasRemaining()) out.write(map);
+                }
+                break;
+            case "copy": {
+                ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER);
+                for (long pos = 0; pos < size; ) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), size - pos));
+                    int n = file.read(buf, pos);
+                    if (n < 0) throw new IOException("File truncated at " + pos);
+                    pos += n;
+                    buf.flip();
+                    while (buf.hasRemaining()) out.write(buf);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown bulk.mode " + mode);
         }
     }
+
+    // CPU time of the calling thread, user and system, or -1 where the JVM cannot tell
+    static long threadCpuNanos() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+}
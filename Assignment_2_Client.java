@@ -1,10 +1,36 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Assignment_2_Client {
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // java Assignment_2_Client --pipeline [host] < requests.txt, one "a b op" or "= (a+b)*c; a=1 b=2 c=3" per line
+        if (args.length > 0 && "--pipeline".equals(args[0])) {
+            pipeline(args.length > 1 ? args[1] : "localhost");
+            return;
+        }
+        // java Assignment_2_Client --batch [host] < requests.txt: everything in one binary batch
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            batch(args.length > 1 ? args[1] : "localhost");
+            return;
+        }
+
         // taking input from client
         Scanner input = new Scanner(System.in);
         System.out.println("Enter two numbers and an operator (+, -, *, /): ");
@@ -16,7 +42,7 @@ public class Assignment_2_Client {
         operator = input.next();
 
         // create socket and related streams in try-with-resources so they are closed automatically
-        try (Socket socket = new Socket("localhost", 1301);
+        try (Socket socket = new Socket("localhost", Assignment_2_server.PORT);
              PrintStream toServer = new PrintStream(socket.getOutputStream());
              Scanner receiver = new Scanner(socket.getInputStream())) {
 
@@ -30,4 +56,106 @@ public class Assignment_2_Client {
             System.out.println("Result: " + result);
         }
     }
+
+    // Sends every request as soon as it is read, tagged with a sequence number, while a second
+    // thread prints the replies as they arrive; nothing waits for a round trip
+    private static void pipeline(String host) throws IOException, InterruptedException {
+        Map<String, String> outstanding = new ConcurrentHashMap<>();
+        try (Socket socket = new Socket(host, Assignment_2_server.PORT);
+             BufferedReader replies = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer toServer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            Thread reader = new Thread(() -> {
+                try {
+                    String reply;
+                    while ((reply = replies.readLine()) != null) {
+                        int space = reply.indexOf(' ');
+                        if (!reply.startsWith("#") || space < 0) {
+                            System.out.println("Unexpected reply: " + reply);
+                            continue;
+                        }
+                        String request = outstanding.remove(reply.substring(1, space));
+                        System.out.println(request + " = " + reply.substring(space + 1));
+                    }
+                } catch (IOException e) {
+                    System.out.println("Connection closed: " + e.getMessage());
+                }
+            });
+            reader.start();
+
+            BufferedReader requests = new BufferedReader(new InputStreamReader(System.in));
+            long id = 0;
+            String line;
+            while ((line = requests.readLine()) != null) {
+                String request = line.trim();
+                if (request.isEmpty()) continue;
+                String tag = Long.toString(++id);
+                outstanding.put(tag, request);
+                toServer.write("#" + tag + " " + request + "\n");
+                // batch what is already typed or piped in, but never hold back the last line
+                if (!requests.ready()) toServer.flush();
+            }
+            toServer.flush();
+            // the server answers everything still queued, then closes its side
+            socket.shutdownOutput();
+            reader.join();
+            if (!outstanding.isEmpty()) System.out.println(outstanding.size() + " requests got no reply");
+        }
+    }
+
+    // Reads every "a b op" line, sends them as a single batch request and prints the results
+    private static void batch(String host) throws IOException {
+        List<String> requests = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!line.trim().isEmpty()) requests.add(line.trim());
+        }
+        int n = 0;
+        int[] number1 = new int[requests.size()];
+        int[] number2 = new int[requests.size()];
+        byte[] opcodes = new byte[requests.size()];
+        List<String> sent = new ArrayList<>();
+        for (String request : requests) {
+            String[] parts = request.split("\\s+");
+            byte op = parts.length == 3 ? BatchCalculator.opcode(parts[2]) : -1;
+            if (op >= 0 && isInt(parts[0]) && isInt(parts[1])) {
+                number1[n] = Integer.parseInt(parts[0]);
+                number2[n] = Integer.parseInt(parts[1]);
+                opcodes[n++] = op;
+                sent.add(request);
+            } else {
+                System.out.println(request + " = Error: Expected number number operator.");
+            }
+        }
+        double[] results = new double[n];
+        try (Socket socket = new Socket(host, Assignment_2_server.PORT);
+             DataOutputStream toServer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream fromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            // one batch per MAX_BATCH tuples, each answered before the next is sent
+            int size = Assignment_2_server.MAX_BATCH;
+            double[] chunk = new double[Math.min(n, size)];
+            for (int from = 0; from < n; from += size) {
+                int count = Math.min(size, n - from);
+                Assignment_2_server.writeBatch(toServer, from, Arrays.copyOfRange(number1, from, from + count),
+                        Arrays.copyOfRange(number2, from, from + count), Arrays.copyOfRange(opcodes, from, from + count), count);
+                toServer.flush();
+                Assignment_2_server.readBatchReply(fromServer, chunk);
+                System.arraycopy(chunk, 0, results, from, count);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            String result = Double.isNaN(results[i]) ? "Error: Division by zero is not allowed." : String.valueOf(results[i]);
+            System.out.println(sent.get(i) + " = " + result);
+        }
+    }
+
+    private static boolean isInt(String s) {
+        try {
+            Integer.parseInt(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
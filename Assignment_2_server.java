@@ -1,52 +1,344 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
+/**
+ * Calculator service: two integers and an operator (+, -, *, /) in, the result out. One
+ * process serves any number of clients, and each keeps its connection for as many requests
+ * as it likes.
+ *
+ * Requests are lines. "#id a b op" is answered "#id result", so a client may pipeline:
+ * write many requests without waiting and match the replies by id. Anything else is the
+ * original protocol, three tokens possibly spread over several lines, answered in order with
+ * a bare result line. A line starting with "=" is an expression with optional variable
+ * values, "= (a+b)*c/d; a=1 b=2 c=3 d=4", answered with its value; it may be tagged too.
+ * Replies are flushed whenever no further request is already waiting,
+ * so a pipelined burst is answered in a few large writes instead of one per request. A line
+ * longer than MAX_LINE bytes is skipped and answered with an error, tagged if its id fit.
+ *
+ * Bulk work goes in a binary batch, which may be mixed with text requests on the same
+ * connection since no text line starts with a NUL byte. All numbers are big-endian:
+ *
+ *   request  byte 0 (BATCH), long id, int n, int[n] number1, int[n] number2, byte[n] opcode
+ *   reply    byte 0, long id, int n, double[n] result
+ *
+ * Opcodes are BatchCalculator.ADD, SUBTRACT, MULTIPLY and DIVIDE (0 to 3); a zero divisor
+ * gives NaN. A batch with an unknown opcode is answered with n = -1 and a writeUTF reason.
+ * A batch over MAX_BATCH tuples closes the connection; send more as several batches.
+ *
+ * Expressions are compiled once and kept in a bounded LRU cache keyed by their text, so a
+ * formula sent again with new values skips tokenizing and parsing. An expression without
+ * variables is evaluated when compiled, so its cached entry is also its result.
+ */
 public class Assignment_2_server {
+    public static final int PORT = 1301;
+    static final int BATCH = 0;
+    // Tuples per batch; a full batch holds about 30 bytes per tuple until it is answered
+    static final int MAX_BATCH = Integer.getInteger("calc.maxBatch", 1 << 16);
+    static final int EXPRESSION_CACHE = Integer.getInteger("calc.expressionCache", 1024);
+    // Longest text request; room for a maximal expression and its variable values
+    static final int MAX_LINE = Integer.getInteger("calc.maxLine", 2 * Expression.MAX_LENGTH);
+
+    // Compiled expressions by source text, least recently used first
+    private static final Map<String, Expression> compiled = new LinkedHashMap<String, Expression>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+            return size() > EXPRESSION_CACHE;
+        }
+    };
+
     public static void main(String[] args) throws IOException {
-        // server side socket and client handling using try-with-resources to ensure closure
-        try (ServerSocket serverSocket = new ServerSocket(1301);
-             Socket clientsInfo = serverSocket.accept();
-             Scanner info = new Scanner(clientsInfo.getInputStream());
-             PrintStream result = new PrintStream(clientsInfo.getOutputStream())) {
-
-            // process with the info
-            int number1;
-            int number2;
-            String operator;
-            double calculationResult;
-
-            number1 = info.nextInt();
-            number2 = info.nextInt();
-            operator = info.next();
-
-            switch (operator) {
-                case "+":
-                    calculationResult = number1 + number2;
-                    result.println(calculationResult);
-                    break;
-                case "-":
-                    calculationResult = number1 - number2;
-                    result.println(calculationResult);
-                    break;
-                case "*":
-                    calculationResult = number1 * number2;
-                    result.println(calculationResult);
-                    break;
-                case "/":
-                    if (number2 != 0) {
-                        calculationResult = (double) number1 / number2;
-                        result.println(calculationResult);
+        ChatLog.info("Calculator server starting on port " + PORT + " (" + ChatExecutors.MODE + " threads)");
+        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+            serve(serverSocket);
+        }
+    }
+
+    // Accepts clients until the server socket is closed
+    static void serve(ServerSocket serverSocket) {
+        ExecutorService executor = ChatExecutors.newHandlerExecutor();
+        try {
+            while (true) {
+                Socket client = serverSocket.accept();
+                executor.submit(() -> handle(client));
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) ChatLog.error("Server error: " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void handle(Socket socket) {
+        try (Socket client = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream(), 1 << 16))) {
+            client.setTcpNoDelay(true);
+            ChatLog.debug("Client connected: " + client.getRemoteSocketAddress());
+            // tokens of an untagged request seen so far
+            String[] pending = new String[3];
+            int pendingCount = 0;
+            ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(64);
+            int first;
+            while ((first = in.read()) >= 0) {
+                if (first == BATCH) {
+                    answerBatch(in, out);
+                } else {
+                    String line = readLine(in, first, lineBytes);
+                    if (line == null) {
+                        // whatever request it belonged to is lost with it
+                        writeLine(out, tooLong(lineBytes));
+                        pendingCount = 0;
+                    } else if (line.startsWith("#")) {
+                        writeLine(out, answerTagged(line));
+                    } else if (pendingCount == 0 && line.trim().startsWith("=")) {
+                        writeLine(out, evaluate(line.trim().substring(1)));
                     } else {
-                        result.println("Error: Division by zero is not allowed.");
+                        int pos = 0;
+                        while (true) {
+                            while (pos < line.length() && isSpace(line.charAt(pos))) pos++;
+                            if (pos == line.length()) break;
+                            int end = pos;
+                            while (end < line.length() && !isSpace(line.charAt(end))) end++;
+                            pending[pendingCount++] = line.substring(pos, end);
+                            pos = end;
+                            if (pendingCount == 3) {
+                                writeLine(out, calculate(pending[0], pending[1], pending[2]));
+                                pendingCount = 0;
+                            }
+                        }
                     }
-                    break;
-                default:
-                    result.println("Error: Invalid operator.");
-                    break;
+                }
+                // never sit on a reply the client may be waiting for
+                if (in.available() == 0) out.flush();
+            }
+            ChatLog.debug("Client disconnected: " + client.getRemoteSocketAddress());
+        } catch (IOException e) {
+            ChatLog.info("I/O error with client: " + e.getMessage());
+        }
+    }
+
+    // The rest of a line whose first byte was already read, without the line ending. Null for
+    // a line over MAX_LINE bytes: the rest of it is read and dropped, its start left in bytes
+    private static String readLine(DataInputStream in, int first, ByteArrayOutputStream bytes) throws IOException {
+        bytes.reset();
+        int b = first;
+        while (b >= 0 && b != '\n') {
+            if (bytes.size() == MAX_LINE) {
+                while (b >= 0 && b != '\n') b = in.read();
+                return null;
+            }
+            bytes.write(b);
+            b = in.read();
+        }
+        String line = bytes.toString(StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static String tooLong(ByteArrayOutputStream start) {
+        String error = "Error: Request longer than " + MAX_LINE + " bytes.";
+        String line = start.toString(StandardCharsets.UTF_8);
+        String[] id = new String[1];
+        if (line.startsWith("#") && tokenize(line, 1, id) > 1) return "#" + id[0] + " " + error;
+        return error;
+    }
+
+    // The whitespace-separated tokens of s from index from, as split("\\s+") on the trimmed text
+    // would give them but without a regex. Fills tokens and returns how many there are, which
+    // may be more than fit
+    static int tokenize(String s, int from, String[] tokens) {
+        int count = 0;
+        int pos = from;
+        while (true) {
+            while (pos < s.length() && isSpace(s.charAt(pos))) pos++;
+            if (pos == s.length()) return count;
+            int end = pos;
+            while (end < s.length() && !isSpace(s.charAt(end))) end++;
+            if (count < tokens.length) tokens[count] = s.substring(pos, end);
+            count++;
+            pos = end;
+        }
+    }
+
+    // The characters \\s matches
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static void writeLine(DataOutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    // Reads a batch whose BATCH byte was already read and writes its reply
+    private static void answerBatch(DataInputStream in, DataOutputStream out) throws IOException {
+        long id = in.readLong();
+        int n = in.readInt();
+        // the rest of the stream cannot be trusted after a bad size
+        if (n < 0 || n > MAX_BATCH) throw new IOException("Batch of " + n + " tuples, limit " + MAX_BATCH);
+        byte[] raw = new byte[4 * n];
+        int[] number1 = readInts(in, raw, n);
+        int[] number2 = readInts(in, raw, n);
+        byte[] opcodes = new byte[n];
+        in.readFully(opcodes);
+
+        out.writeByte(BATCH);
+        out.writeLong(id);
+        int bad = BatchCalculator.firstInvalid(opcodes, n);
+        if (bad >= 0) {
+            out.writeInt(-1);
+            out.writeUTF("Invalid operator code " + opcodes[bad] + " at index " + bad);
+            return;
+        }
+        double[] results = new double[n];
+        BatchCalculator.evaluate(number1, number2, opcodes, results, n);
+        out.writeInt(n);
+        byte[] bytes = new byte[8 * n];
+        ByteBuffer.wrap(bytes).asDoubleBuffer().put(results);
+        out.write(bytes);
+    }
+
+    private static int[] readInts(DataInputStream in, byte[] raw, int n) throws IOException {
+        in.readFully(raw, 0, 4 * n);
+        int[] values = new int[n];
+        ByteBuffer.wrap(raw, 0, 4 * n).asIntBuffer().get(values);
+        return values;
+    }
+
+    // Client side: sends one batch; opcodes as in BatchCalculator
+    static void writeBatch(DataOutputStream out, long id, int[] number1, int[] number2, byte[] opcodes, int n)
+            throws IOException {
+        byte[] raw = new byte[8 * n];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        buf.asIntBuffer().put(number1, 0, n).put(number2, 0, n);
+        out.writeByte(BATCH);
+        out.writeLong(id);
+        out.writeInt(n);
+        out.write(raw);
+        out.write(opcodes, 0, n);
+    }
+
+    // Client side: reads one batch reply into results, returns its id; throws if the batch was rejected
+    static long readBatchReply(DataInputStream in, double[] results) throws IOException {
+        if (in.readByte() != BATCH) throw new IOException("Expected a batch reply");
+        long id = in.readLong();
+        int n = in.readInt();
+        if (n < 0) throw new IOException("Batch " + id + " rejected: " + in.readUTF());
+        if (n > results.length) throw new IOException("Batch reply of " + n + " results, expected at most " + results.length);
+        byte[] raw = new byte[8 * n];
+        in.readFully(raw);
+        ByteBuffer.wrap(raw).asDoubleBuffer().get(results, 0, n);
+        return id;
+    }
+
+    // "#id a b op" -> "#id result", and "#id = expression; x=1" -> "#id value"
+    static String answerTagged(String line) {
+        String request = line.substring(1).trim();
+        int space = request.indexOf(' ');
+        if (space > 0 && request.substring(space + 1).trim().startsWith("=")) {
+            return "#" + request.substring(0, space) + " " + evaluate(request.substring(space + 1).trim().substring(1));
+        }
+        String[] parts = new String[4];
+        int n = tokenize(request, 0, parts);
+        if (n != 4) return "#" + (n == 0 ? "" : parts[0]) + " Error: Expected #id number number operator.";
+        return "#" + parts[0] + " " + calculate(parts[1], parts[2], parts[3]);
+    }
+
+    // "(a+b)*c/d; a=1 b=2 c=3 d=4" -> value; the bindings may also be separated by commas
+    static String evaluate(String request) {
+        int semicolon = request.indexOf(';');
+        String source = (semicolon < 0 ? request : request.substring(0, semicolon)).trim();
+        try {
+            Expression expression = compiled(source);
+            if (expression.isConstant()) return String.valueOf(expression.evaluate());
+            double[] values = new double[expression.variableCount()];
+            boolean[] bound = new boolean[values.length];
+            // name=value pairs separated by spaces or commas, scanned by hand: no regex per request
+            int pos = semicolon < 0 ? request.length() : semicolon + 1;
+            while (pos < request.length()) {
+                char c = request.charAt(pos);
+                if (c == ' ' || c == ',' || c == '\t') {
+                    pos++;
+                    continue;
+                }
+                int end = pos;
+                while (end < request.length() && " ,\t".indexOf(request.charAt(end)) < 0) end++;
+                int equals = request.indexOf('=', pos);
+                if (equals <= pos || equals >= end) return "Error: Expected name=value, got " + request.substring(pos, end) + ".";
+                int slot = expression.slot(request.substring(pos, equals));
+                // values for names the expression does not use are ignored
+                if (slot >= 0) {
+                    values[slot] = Double.parseDouble(request.substring(equals + 1, end));
+                    bound[slot] = true;
+                }
+                pos = end;
+            }
+            for (int i = 0; i < bound.length; i++) {
+                if (!bound[i]) return "Error: No value for " + expression.variable(i) + ".";
+            }
+            return String.valueOf(expression.evaluate(values));
+        } catch (ArithmeticException e) {
+            return "Error: " + e.getMessage();
+        } catch (NumberFormatException e) {
+            return "Error: Invalid number.";
+        } catch (IllegalArgumentException e) {
+            return "Error: " + e.getMessage() + ".";
+        }
+    }
+
+    // Compiles outside the lock, so a slow parse never holds up other clients' cache hits
+    static Expression compiled(String source) {
+        Expression expression;
+        synchronized (compiled) {
+            expression = compiled.get(source);
+        }
+        if (expression == null) {
+            expression = Expression.compile(source);
+            synchronized (compiled) {
+                compiled.put(source, expression);
             }
         }
+        return expression;
+    }
+
+    static String calculate(String number1, String number2, String operator) {
+        try {
+            return calculate(Integer.parseInt(number1), Integer.parseInt(number2), operator);
+        } catch (NumberFormatException e) {
+            return "Error: Invalid number.";
+        }
+    }
+
+    static String calculate(int number1, int number2, String operator) {
+        double calculationResult;
+        switch (operator) {
+            case "+":
+                calculationResult = number1 + number2;
+                return String.valueOf(calculationResult);
+            case "-":
+                calculationResult = number1 - number2;
+                return String.valueOf(calculationResult);
+            case "*":
+                calculationResult = number1 * number2;
+                return String.valueOf(calculationResult);
+            case "/":
+                if (number2 != 0) {
+                    calculationResult = (double) number1 / number2;
+                    return String.valueOf(calculationResult);
+                }
+                return "Error: Division by zero is not allowed.";
+            default:
+                return "Error: Invalid operator.";
+        }
     }
 }
@@ -0,0 +1,124 @@
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Executors for the blocking per-client handlers. "platform" is the classic cached pool,
+ * "virtual" runs every handler on its own virtual thread (JDK 21+) so the readUTF/writeUTF
+ * loops stay as they are but idle clients no longer hold an OS thread, e.g. -Dchat.threads=virtual
+ */
+public final class ChatExecutors {
+    static final String MODE = System.getProperty("chat.threads", "platform");
+    // Pins shorter than this are not reported; the JDK's own default is 20 ms
+    private static final long PIN_THRESHOLD_MS = Long.getLong("chat.pinThresholdMs", 1);
+    // Pins at a place already reported are only counted, and summed up at most this often
+    private static final long PIN_REPORT_MILLIS = Long.getLong("chat.pinReportMs", 10_000);
+    private static final int MAX_PIN_SITES = 256;
+
+    private static final AtomicBoolean monitorStarted = new AtomicBoolean();
+    private static final AtomicLong pinnedEvents = new AtomicLong();
+
+    private ChatExecutors() {}
+
+    static ExecutorService newHandlerExecutor() {
+        return newHandlerExecutor(MODE);
+    }
+
+    static ExecutorService newHandlerExecutor(String mode) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                startPinningMonitor();
+                return virtual;
+            }
+            ChatLog.warn("Virtual threads need JDK 21+, falling back to platform threads");
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Number of times a handler blocked while pinned to its carrier since the monitor started
+    static long pinnedEvents() {
+        return pinnedEvents.get();
+    }
+
+    // Looked up reflectively so the sources still compile and run on JDK 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // A handler that blocks inside synchronized code (or a native frame) pins its carrier thread,
+    // which silently turns virtual threads back into a fixed pool. The JDK reports each such block
+    // as a jdk.VirtualThreadPinned event; we stream those and log where it happened.
+    private static void startPinningMonitor() {
+        if (!monitorStarted.compareAndSet(false, true)) return;
+        try {
+            RecordingStream rs = new RecordingStream();
+            rs.enable("jdk.VirtualThreadPinned").withStackTrace().withThreshold(Duration.ofMillis(PIN_THRESHOLD_MS));
+            rs.onEvent("jdk.VirtualThreadPinned", new PinReporter());
+            rs.setReuse(true);
+            rs.startAsync();
+        } catch (RuntimeException e) {
+            ChatLog.warn("Pinning monitor unavailable: " + e.getMessage());
+        }
+    }
+
+    // Runs on the recording stream's thread only. A storm of pins would otherwise be a storm of
+    // log lines: each stack is logged in full the first time, repeats go into a periodic count.
+    private static final class PinReporter implements Consumer<RecordedEvent> {
+        private final Set<String> sites = new HashSet<>();
+        private long repeats;
+        private long repeatMillis;
+        private long lastReport = System.nanoTime();
+
+        @Override
+        public void accept(RecordedEvent event) {
+            pinnedEvents.incrementAndGet();
+            long millis = event.getDuration().toMillis();
+            StringBuilder stack = new StringBuilder();
+            if (event.getStackTrace() != null) {
+                for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                    stack.append("\n\tat ").append(frame.getMethod().getType().getName())
+                            .append('.').append(frame.getMethod().getName())
+                            .append(':').append(frame.getLineNumber());
+                }
+            }
+            String site = stack.toString();
+            if (sites.size() < MAX_PIN_SITES && sites.add(site)) {
+                ChatLog.warn("Virtual thread pinned for " + millis + " ms" + site);
+            } else {
+                repeats++;
+                repeatMillis += millis;
+            }
+            long now = System.nanoTime();
+            if (repeats > 0 && now - lastReport >= PIN_REPORT_MILLIS * 1_000_000) {
+                ChatLog.warn("Virtual threads pinned " + repeats + " more times, " + repeatMillis
+                        + " ms in all, stacks not logged again");
+                repeats = 0;
+                repeatMillis = 0;
+                lastReport = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links several MyChatAppServer processes so a room spans all of them. Every node keeps a
+ * relay link to every other node (a full mesh). A chat message is forwarded once to each
+ * peer, which fans it out to its own members of the room. Messages that came from a peer
+ * are never forwarded again, so nothing loops; a bounded set of recently seen
+ * (node, message id) pairs also drops anything that arrives twice while two links race.
+ *
+ *   -Dchat.nodeId=a -Dchat.peerPort=2333 -Dchat.peers=localhost:2334,localhost:2335
+ *
+ * Each link has its own bounded queue and writer thread, so a slow peer only delays itself.
+ * The writer drains whatever is queued and flushes once per batch. A node dials the peers
+ * it was given and redials them when a link drops; it is enough for one side of each pair
+ * to list the other.
+ *
+ * Link protocol: both sides send writeUTF(HELLO) and writeUTF(nodeId), then a stream of
+ * [long messageId][UTF room][ChatProtocol v2 frame]. Large frames cross the link compressed
+ * unless chat.compress=false.
+ */
+public class ChatFederation {
+    private static final String HELLO = "chat-peer 2";
+    private static final int LINK_QUEUE = Integer.getInteger("chat.peerQueue", 65536);
+    private static final int MAX_BATCH = 512;
+    private static final ChatProtocol.Wire LINK_WIRE =
+            ChatProtocol.COMPRESS ? ChatProtocol.Wire.V2_DEFLATE : ChatProtocol.Wire.V2;
+    private static final int SEEN_CAPACITY = 65536;
+    private static final long MAX_REDIAL_MILLIS = 10_000;
+
+    private final MyChatAppServer server;
+    private final String nodeId;
+    private final int peerPort;
+    private final List<String> peers;
+    // One live link per remote node id
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<>();
+    // Seeded from the clock so a restarted node does not reuse ids its peers still remember
+    private final AtomicLong nextMessageId = new AtomicLong(System.currentTimeMillis() << 20);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Map<String, Boolean> seen = new LinkedHashMap<String, Boolean>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_CAPACITY;
+        }
+    };
+    private volatile boolean running = true;
+    private ServerSocket listener;
+
+    ChatFederation(MyChatAppServer server, String nodeId, int peerPort, List<String> peers) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.peerPort = peerPort;
+        this.peers = peers;
+    }
+
+    void start() throws IOException {
+        if (peerPort > 0) {
+            listener = new ServerSocket(peerPort);
+            daemon("chat-peer-accept", this::acceptLoop);
+        }
+        for (String peer : peers) daemon("chat-peer-dial-" + peer, () -> dialLoop(peer));
+        ChatLog.info("Federation node " + nodeId + (peerPort > 0 ? " listening for peers on " + peerPort : "")
+                + (peers.isEmpty() ? "" : ", dialing " + peers));
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) {}
+        for (Link l : links.values()) l.close();
+    }
+
+    // Queues one copy of a locally published message for every peer; takes no reference from the caller
+    void forward(String room, ChatFrame frame) {
+        if (links.isEmpty()) return;
+        long id = nextMessageId.incrementAndGet();
+        for (Link l : links.values()) l.enqueue(new Relay(id, room, frame.retain()));
+    }
+
+    // Messages lost because a peer's queue was full
+    long dropped() {
+        return dropped.get();
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                daemon("chat-peer-in-" + socket.getRemoteSocketAddress(), () -> serve(socket, false));
+            } catch (IOException e) {
+                if (running) ChatLog.warn("Peer accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void dialLoop(String peer) {
+        int colon = peer.lastIndexOf(':');
+        String host = peer.substring(0, colon);
+        int port = Integer.parseInt(peer.substring(colon + 1));
+        long backoff = 250;
+        while (running) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), 2000);
+                backoff = 250;
+                String linkedElsewhere = serve(socket, true);
+                // the peer's own dial won; stand by until that link goes away
+                while (running && linkedElsewhere != null && links.containsKey(linkedElsewhere)) {
+                    Thread.sleep(backoff);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                ChatLog.debug("Peer " + peer + " unreachable: " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+            if (!running) return;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_REDIAL_MILLIS);
+        }
+    }
+
+    // Handshakes, then reads the peer's messages on this thread until the link drops.
+    // Returns the peer's node id if another link to it was preferred over this one.
+    private String serve(Socket socket, boolean dialed) {
+        Link link = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(HELLO);
+            out.writeUTF(nodeId);
+            out.flush();
+            if (!HELLO.equals(in.readUTF())) throw new IOException("not a chat peer");
+            String remote = in.readUTF();
+            if (remote.equals(nodeId)) throw new IOException("peer has our own node id " + nodeId);
+            link = new Link(remote, socket, out, dialed ? nodeId : remote);
+            if (!register(link)) return remote;
+            ChatLog.info("Peer link to " + remote + " up (" + socket.getRemoteSocketAddress() + ")");
+            link.writer = new Thread(link::writeLoop, "chat-peer-out-" + remote);
+            link.writer.setDaemon(true);
+            link.writer.start();
+            while (running) {
+                long id = in.readLong();
+                String room = in.readUTF();
+                ChatProtocol.Message m = ChatProtocol.read(in);
+                if (firstSighting(remote, id)) {
+                    server.deliverFromPeer(room, ChatFrame.of(m.type, m.senderId, m.timestamp, m.payload));
+                }
+            }
+        } catch (IOException e) {
+            if (running) ChatLog.info("Peer link " + socket.getRemoteSocketAddress() + " down: " + e.getMessage());
+        } finally {
+            if (link != null) {
+                links.remove(link.remote, link);
+                link.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return null;
+    }
+
+    // When both nodes dial each other, both keep the link dialed by the smaller node id
+    private boolean register(Link link) {
+        while (true) {
+            Link existing = links.putIfAbsent(link.remote, link);
+            if (existing == null) return true;
+            // same dialer means a redial, and the newer link wins
+            if (existing.dialer.compareTo(link.dialer) < 0) return false;
+            if (links.replace(link.remote, existing, link)) {
+                existing.close();
+                return true;
+            }
+        }
+    }
+
+    private boolean firstSighting(String node, long id) {
+        synchronized (seen) {
+            return seen.put(node + '#' + id, Boolean.TRUE) == null;
+        }
+    }
+
+    private static final class Relay {
+        final long id;
+        final String room;
+        final ChatFrame frame;
+
+        Relay(long id, String room, ChatFrame frame) {
+            this.id = id;
+            this.room = room;
+            this.frame = frame;
+        }
+    }
+
+    private final class Link {
+        final String remote;
+        final Socket socket;
+        final DataOutputStream out;
+        final String dialer;
+        final BlockingQueue<Relay> queue = new ArrayBlockingQueue<>(LINK_QUEUE);
+        Thread writer;
+        volatile boolean closed;
+
+        Link(String remote, Socket socket, DataOutputStream out, String dialer) {
+            this.remote = remote;
+            this.socket = socket;
+            this.out = out;
+            this.dialer = dialer;
+        }
+
+        void enqueue(Relay r) {
+            if (closed || !queue.offer(r)) {
+                r.frame.release();
+                dropped.incrementAndGet();
+            }
+        }
+
+        void writeLoop() {
+            List<Relay> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Relay r : batch) {
+                        // a chat line that only fits a client's frame limit before the name prefix
+                        if (r.frame.buffer(LINK_WIRE) == null) continue;
+                        out.writeLong(r.id);
+                        out.writeUTF(r.room);
+                        // the bytes are shared with every client on the same wire that receives the frame
+                        r.frame.writeTo(out, LINK_WIRE);
+                    }
+                    out.flush();
+                    releaseAll(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (!closed) ChatLog.info("Peer link to " + remote + " failed: " + e.getMessage());
+            } finally {
+                releaseAll(batch);
+                close();
+            }
+        }
+
+        private void releaseAll(List<Relay> relays) {
+            for (Relay r : relays) r.frame.release();
+            relays.clear();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (writer != null) writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            Relay r;
+            while ((r = queue.poll()) != null) r.frame.release();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chat message encoded once per wire format and then shared by every recipient of a
+ * broadcast: the legacy writeUTF bytes (2-byte length + modified UTF-8) and the v2 frame
+ * from ChatProtocol are each built on first use and never change afterwards. The compressed
+ * v2 frame is built from the v2 one, so a large broadcast is deflated once, not per recipient.
+ * Each queue holding the frame owns one reference, so the frame knows when the last
+ * recipient has written (or dropped) it.
+ */
+public final class ChatFrame {
+    private static final byte[] UNREPRESENTABLE = new byte[0];
+
+    private final byte type;
+    private final long senderId;
+    private final long timestamp;
+    private final String text;
+    // What the connection speaks after this frame; null for anything but a handshake answer
+    private final ChatProtocol.Wire upgrade;
+    private volatile byte[] legacy;
+    private volatile byte[] v2;
+    private volatile byte[] deflated;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private ChatFrame(byte type, long senderId, long timestamp, String text, ChatProtocol.Wire upgrade) {
+        this.type = type;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.text = text;
+        this.upgrade = upgrade;
+    }
+
+    // The returned frame holds one reference, owned by the caller
+    static ChatFrame of(byte type, long senderId, String text) {
+        return of(type, senderId, System.currentTimeMillis(), text);
+    }
+
+    static ChatFrame of(byte type, long senderId, long timestamp, String text) {
+        return new ChatFrame(type, senderId, timestamp, text, null);
+    }
+
+    // The legacy HELLO_OK answer; a writer switches that connection to v2 right after sending it
+    static ChatFrame upgradeAck() {
+        return upgradeAck(false);
+    }
+
+    static ChatFrame upgradeAck(boolean deflate) {
+        return new ChatFrame(ChatProtocol.CONTROL, 0, System.currentTimeMillis(),
+                deflate ? ChatProtocol.HELLO_OK_DEFLATE : ChatProtocol.HELLO_OK,
+                deflate ? ChatProtocol.Wire.V2_DEFLATE : ChatProtocol.Wire.V2);
+    }
+
+    byte type() {
+        return type;
+    }
+
+    long senderId() {
+        return senderId;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    String text() {
+        return text;
+    }
+
+    boolean upgradesProtocol() {
+        return upgrade != null;
+    }
+
+    ChatProtocol.Wire upgradeWire() {
+        return upgrade;
+    }
+
+    // Returns false when the text cannot be carried in that format (over 64 KB for legacy)
+    boolean writeTo(OutputStream out, boolean v2) throws IOException {
+        return writeTo(out, v2 ? ChatProtocol.Wire.V2 : ChatProtocol.Wire.LEGACY);
+    }
+
+    boolean writeTo(OutputStream out, ChatProtocol.Wire wire) throws IOException {
+        byte[] b = bytes(wire);
+        if (b == UNREPRESENTABLE) return false;
+        out.write(b, 0, b.length);
+        return true;
+    }
+
+    // A read-only view with its own position, so recipients can write the same bytes
+    // independently; null when the text cannot be carried in that format
+    ByteBuffer buffer(boolean v2) {
+        return buffer(v2 ? ChatProtocol.Wire.V2 : ChatProtocol.Wire.LEGACY);
+    }
+
+    ByteBuffer buffer(ChatProtocol.Wire wire) {
+        byte[] b = bytes(wire);
+        return b == UNREPRESENTABLE ? null : ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+
+    // Two writers may race to build the same encoding; both produce identical bytes
+    private byte[] bytes(ChatProtocol.Wire wire) {
+        switch (wire) {
+            case LEGACY:
+                byte[] l = legacy;
+                if (l == null) legacy = l = encodeOrMark(false);
+                return l;
+            case V2:
+                byte[] b = v2;
+                if (b == null) v2 = b = encodeOrMark(true);
+                return b;
+            default:
+                byte[] d = deflated;
+                if (d == null) {
+                    d = bytes(ChatProtocol.Wire.V2);
+                    // short frames stay the very same array as the v2 encoding
+                    if (d != UNREPRESENTABLE) d = ChatProtocol.compress(d);
+                    deflated = d;
+                }
+                return d;
+        }
+    }
+
+    private byte[] encodeOrMark(boolean wantV2) {
+        try {
+            return wantV2 ? ChatProtocol.encode(type, senderId, timestamp, text) : encodeUtf(text);
+        } catch (UTFDataFormatException e) {
+            return UNREPRESENTABLE;
+        }
+    }
+
+    ChatFrame retain() {
+        if (refCnt.getAndIncrement() <= 0) throw new IllegalStateException("frame already released");
+        return this;
+    }
+
+    // For readers that may race with the last release: retains only while the frame is still live
+    boolean tryRetain() {
+        int n;
+        do {
+            n = refCnt.get();
+            if (n <= 0) return false;
+        } while (!refCnt.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    // Returns true when this was the last reference
+    boolean release() {
+        int left = refCnt.decrementAndGet();
+        if (left < 0) throw new IllegalStateException("frame released too often");
+        return left == 0;
+    }
+
+    int refCount() {
+        return refCnt.get();
+    }
+
+    // Same output as DataOutputStream.writeUTF, written straight into one exact-size array
+    static byte[] encodeUtf(String s) throws UTFDataFormatException {
+        int strlen = s.length();
+        int utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || c == 0) utflen += (c >= 0x800) ? 2 : 1;
+        }
+        if (utflen > 0xFFFF) throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+
+        byte[] out = new byte[utflen + 2];
+        out[0] = (byte) (utflen >>> 8);
+        out[1] = (byte) utflen;
+        int count = 2;
+        for (int i = 0; i < strlen; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && c != 0) {
+                out[count++] = (byte) c;
+            } else if (c >= 0x800) {
+                out[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                out[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[count++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                out[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                out[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return out;
+    }
+}
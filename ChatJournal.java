@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only chat history on disk, written through memory-mapped segment files.
+ *
+ * Broadcasting threads only enqueue; one journal thread copies everything queued into the
+ * current segment and then forces it once for the whole batch (group commit), so the message
+ * path never waits for the disk. A full segment is rolled to a new file and the oldest ones are
+ * deleted beyond the retention limit. On open, the existing segments are replayed in order,
+ * stopping at the first zero length or checksum mismatch (a write torn by a crash).
+ *
+ * Record: int length | int crc32c | short roomLength | room | byte type | long sender
+ *         | long timestamp | payload, all UTF-8, length and crc covering everything after them.
+ */
+public class ChatJournal implements AutoCloseable {
+    private static final String SUFFIX = ".seg";
+    private static final int RECORD_HEADER = 4 + 4;
+    private static final int BODY_FIXED = 2 + 1 + 8 + 8;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int maxPending;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final CRC32C crc = new CRC32C();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private long nextSegment;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int syncedUpTo;
+
+    // A message read back during replay
+    static final class Entry {
+        final String room;
+        final byte type;
+        final long senderId;
+        final long timestamp;
+        final String payload;
+
+        Entry(String room, byte type, long senderId, long timestamp, String payload) {
+            this.room = room;
+            this.type = type;
+            this.senderId = senderId;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Pending {
+        final String room;
+        final ChatFrame frame;
+
+        Pending(String room, ChatFrame frame) {
+            this.room = room;
+            this.frame = frame;
+        }
+    }
+
+    private ChatJournal(Path dir, int segmentBytes, int maxSegments, int maxPending) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.maxPending = maxPending;
+        this.writer = new Thread(this::writeLoop, "chat-journal");
+        this.writer.setDaemon(true);
+    }
+
+    // Replays every intact record already in dir, then starts a fresh segment for new appends
+    static ChatJournal open(Path dir, int segmentBytes, int maxSegments, int maxPending,
+                            Consumer<Entry> replay) throws IOException {
+        Files.createDirectories(dir);
+        ChatJournal journal = new ChatJournal(dir, segmentBytes, maxSegments, maxPending);
+        List<Path> segments = journal.segments();
+        for (Path p : segments) journal.replay(p, replay);
+        if (!segments.isEmpty()) journal.nextSegment = index(segments.get(segments.size() - 1)) + 1;
+        journal.roll();
+        journal.writer.start();
+        return journal;
+    }
+
+    // Takes over one reference to the frame. Never blocks: past maxPending queued records the
+    // message is counted as dropped instead of stalling the broadcast.
+    void append(String room, ChatFrame frame) {
+        if (!running || pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            frame.release();
+            return;
+        }
+        queue.add(new Pending(room, frame));
+        LockSupport.unpark(writer);
+    }
+
+    long written() {
+        return written.get();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    // Drains whatever is still queued, forces it and closes the current segment
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending p = queue.poll();
+                if (p == null) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                // one batch: everything queued right now, then a single force
+                int n = 0;
+                do {
+                    pending.decrementAndGet();
+                    try {
+                        write(p);
+                    } finally {
+                        p.frame.release();
+                    }
+                    n++;
+                } while ((p = queue.poll()) != null);
+                sync();
+                written.addAndGet(n);
+            }
+        } catch (IOException e) {
+            ChatLog.error("Journal write failed, history is no longer recorded: " + e.getMessage());
+            running = false;
+            Pending p;
+            while ((p = queue.poll()) != null) p.frame.release();
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void write(Pending p) throws IOException {
+        byte[] room = p.room.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = p.frame.text().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = BODY_FIXED + room.length + payload.length;
+        int recordLength = RECORD_HEADER + bodyLength;
+        if (recordLength > segmentBytes) {
+            ChatLog.warn("Journal record of " + recordLength + " bytes exceeds the segment size, skipped");
+            return;
+        }
+        if (segment.remaining() < recordLength) {
+            sync();
+            roll();
+        }
+        int start = segment.position();
+        segment.position(start + RECORD_HEADER);
+        segment.putShort((short) room.length).put(room)
+                .put(p.frame.type()).putLong(p.frame.senderId()).putLong(p.frame.timestamp())
+                .put(payload);
+        crc.reset();
+        crc.update(segment.duplicate().position(start + RECORD_HEADER).limit(start + recordLength));
+        // the length goes in last, so a reader never sees a length without its body
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, bodyLength);
+    }
+
+    // Group commit: flush only the bytes written since the previous force
+    private void sync() {
+        int end = segment.position();
+        if (end > syncedUpTo) {
+            segment.force(syncedUpTo, end - syncedUpTo);
+            syncedUpTo = end;
+        }
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        Path file = dir.resolve(String.format("journal-%020d%s", nextSegment++, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        syncedUpTo = 0;
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private void closeSegment() {
+        if (channel == null) return;
+        sync();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        channel = null;
+    }
+
+    private void replay(Path file, Consumer<Entry> replay) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            CRC32C check = new CRC32C();
+            while (buf.remaining() >= RECORD_HEADER) {
+                int bodyLength = buf.getInt();
+                int expected = buf.getInt();
+                if (bodyLength < BODY_FIXED || bodyLength > buf.remaining()) return;
+                int bodyStart = buf.position();
+                check.reset();
+                check.update(buf.duplicate().limit(bodyStart + bodyLength));
+                if ((int) check.getValue() != expected) {
+                    ChatLog.warn("Journal " + file.getFileName() + " is torn at offset " + (bodyStart - RECORD_HEADER));
+                    return;
+                }
+                byte[] room = new byte[buf.getShort() & 0xFFFF];
+                buf.get(room);
+                byte type = buf.get();
+                long sender = buf.getLong();
+                long timestamp = buf.getLong();
+                byte[] payload = new byte[bodyStart + bodyLength - buf.position()];
+                buf.get(payload);
+                replay.accept(new Entry(new String(room, StandardCharsets.UTF_8), type, sender, timestamp,
+                        new String(payload, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "journal-*" + SUFFIX)) {
+            for (Path p : ds) segments.add(p);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long index(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("journal-".length(), name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger for the servers. Callers only claim a slot in a bounded lock-free
+ * ring and store the event; one background thread formats everything queued and writes it
+ * in a single batch, to the console or to a rolling file. Nobody waits on a PrintStream
+ * lock, and when the ring is full events are dropped and counted instead of blocking.
+ *
+ *   -Dchat.log.level=debug|info|warn|error|off   default info; per-message lines are debug
+ *   -Dchat.log.file=logs/chat.log                 default is stdout (warn/error to stderr)
+ *   -Dchat.log.maxBytes=10485760 -Dchat.log.maxFiles=5
+ *
+ * The level is fixed at startup, so guarding a call with {@code if (ChatLog.DEBUG)} costs
+ * nothing once the JIT folds the constant, not even building the message.
+ */
+public final class ChatLog {
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("chat.log.level", "info").toUpperCase(Locale.ROOT));
+    static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) <= 0;
+    static final boolean INFO = LEVEL.compareTo(Level.INFO) <= 0;
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.buffer", 1 << 16)));
+    private static final String FILE = System.getProperty("chat.log.file");
+    private static final long MAX_BYTES = Long.getLong("chat.log.maxBytes", 10L << 20);
+    private static final int MAX_FILES = Integer.getInteger("chat.log.maxFiles", 5);
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        Event(Level level, String message, Throwable error) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    // Bounded multi-producer ring: a slot whose sequence equals the claimed position is free
+    // to write, and position + 1 marks it readable
+    private static final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long droppedReported;
+
+    private static Writer out;
+    private static Writer err;
+    private static long fileBytes;
+    private static final StringBuilder batch = new StringBuilder();
+    // Most events of a burst share a millisecond; format it once
+    private static long lastTime = -1;
+    private static String lastTimeText;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+        if (LEVEL != Level.OFF) {
+            Thread writer = new Thread(ChatLog::writeLoop, "chat-log");
+            writer.setDaemon(true);
+            writer.start();
+            // whatever is still queued at exit is written by the hook
+            Runtime.getRuntime().addShutdownHook(new Thread(ChatLog::drain, "chat-log-flush"));
+        }
+    }
+
+    private ChatLog() {}
+
+    static void debug(String message) {
+        if (DEBUG) enqueue(new Event(Level.DEBUG, message, null));
+    }
+
+    static void info(String message) {
+        if (INFO) enqueue(new Event(Level.INFO, message, null));
+    }
+
+    static void warn(String message) {
+        if (LEVEL.compareTo(Level.WARN) <= 0) enqueue(new Event(Level.WARN, message, null));
+    }
+
+    static void error(String message) {
+        error(message, null);
+    }
+
+    static void error(String message, Throwable error) {
+        if (LEVEL.compareTo(Level.ERROR) <= 0) enqueue(new Event(Level.ERROR, message, error));
+    }
+
+    // Events dropped so far because the ring was full
+    static long dropped() {
+        return dropped.get();
+    }
+
+    private static void enqueue(Event e) {
+        while (true) {
+            long pos = tail.get();
+            int slot = (int) (pos & (CAPACITY - 1));
+            long seq = sequences.get(slot);
+            if (seq < pos) {
+                // the writer has not freed this slot yet: full
+                dropped.incrementAndGet();
+                return;
+            }
+            if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                slots.set(slot, e);
+                sequences.set(slot, pos + 1);
+                return;
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // Writes everything readable in one batch per stream; false when there was nothing
+    private static synchronized boolean drain() {
+        boolean any = false;
+        try {
+            long lost = dropped.get() - droppedReported;
+            if (lost > 0) {
+                droppedReported += lost;
+                write(new Event(Level.WARN, lost + " log events dropped, log buffer full", null));
+                any = true;
+            }
+            while (true) {
+                int slot = (int) (head & (CAPACITY - 1));
+                if (sequences.get(slot) != head + 1) break;
+                Event e = slots.getAndSet(slot, null);
+                sequences.set(slot, head + CAPACITY);
+                head++;
+                write(e);
+                any = true;
+            }
+            if (any) {
+                if (out != null) out.flush();
+                if (err != null) err.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Log write failed: " + e.getMessage());
+        }
+        return any;
+    }
+
+    private static void write(Event e) throws IOException {
+        batch.setLength(0);
+        if (e.time != lastTime) {
+            lastTime = e.time;
+            lastTimeText = TIME.format(Instant.ofEpochMilli(e.time));
+        }
+        batch.append(lastTimeText);
+        batch.append(' ').append(e.level);
+        if (e.level.name().length() == 4) batch.append(' ');
+        batch.append(" [").append(e.thread).append("] ").append(e.message).append(System.lineSeparator());
+        if (e.error != null) {
+            StringWriter trace = new StringWriter();
+            e.error.printStackTrace(new PrintWriter(trace));
+            batch.append(trace);
+        }
+        if (FILE == null) {
+            stream(e.level).append(batch);
+            return;
+        }
+        if (out == null || fileBytes + batch.length() > MAX_BYTES) roll();
+        out.append(batch);
+        fileBytes += batch.length();
+    }
+
+    private static Writer stream(Level level) {
+        if (level.compareTo(Level.WARN) >= 0) {
+            if (err == null) err = new BufferedWriter(new OutputStreamWriter(System.err), 1 << 16);
+            return err;
+        }
+        if (out == null) out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        return out;
+    }
+
+    // chat.log -> chat.log.1 -> ... -> chat.log.<maxFiles - 1>, then a fresh chat.log
+    private static void roll() throws IOException {
+        Path file = Paths.get(FILE);
+        if (out != null) out.close();
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        if (Files.exists(file) && (out != null || Files.size(file) >= MAX_BYTES)) {
+            Files.deleteIfExists(Paths.get(FILE + "." + (MAX_FILES - 1)));
+            for (int i = MAX_FILES - 2; i >= 1; i--) {
+                Path from = Paths.get(FILE + "." + i);
+                if (Files.exists(from)) Files.move(from, Paths.get(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (MAX_FILES > 1) Files.move(file, Paths.get(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            else Files.delete(file);
+        }
+        fileBytes = Files.exists(file) ? Files.size(file) : 0;
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
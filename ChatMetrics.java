@@ -0,0 +1,249 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Server counters and latency histograms. The hot paths only bump LongAdders and
+ * LatencyHistogram buckets; once a second a sampler turns them into rates and interval
+ * percentiles, and readers (JMX, the server GUI) only ever see those sampled values.
+ * Gauges such as queue depth are computed by the sampler, never per event.
+ */
+public class ChatMetrics implements ChatMetricsMBean {
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder failedSends = new LongAdder();
+    private final LongAdder idleDisconnects = new LongAdder();
+    private final LongAdder throttledReads = new LongAdder();
+    private final LongAdder rateLimitDisconnects = new LongAdder();
+    private final LatencyHistogram acceptNanos = new LatencyHistogram();
+    private final LatencyHistogram readNanos = new LatencyHistogram();
+    private final LatencyHistogram fanoutNanos = new LatencyHistogram();
+    private final LatencyHistogram sendNanos = new LatencyHistogram();
+    private final LatencyHistogram window = new LatencyHistogram();
+
+    private final LongSupplier activeConnections;
+    private final LongSupplier queuedFrames;
+    private ScheduledExecutorService sampler;
+    private ObjectName registeredAs;
+
+    private long lastSample = System.nanoTime();
+    private long lastIn;
+    private long lastOut;
+    private volatile long sampledActive;
+    private volatile long sampledQueued;
+    private volatile double inPerSecond;
+    private volatile double outPerSecond;
+    private volatile double acceptP99;
+    private volatile double readP50;
+    private volatile double readP99;
+    private volatile double fanoutP50;
+    private volatile double fanoutP99;
+    private volatile double fanoutMax;
+    private volatile double sendP99;
+
+    ChatMetrics(LongSupplier activeConnections, LongSupplier queuedFrames) {
+        this.activeConnections = activeConnections;
+        this.queuedFrames = queuedFrames;
+    }
+
+    // Starts the sampler and publishes the MBean as MyChatApp:type=ChatMetrics,name=<name>
+    void start(String name) {
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName("MyChatApp:type=ChatMetrics,name=" + ObjectName.quote(name));
+            if (mbs.isRegistered(on)) mbs.unregisterMBean(on);
+            mbs.registerMBean(this, on);
+            registeredAs = on;
+        } catch (JMException e) {
+            ChatLog.warn("Metrics not published over JMX: " + e.getMessage());
+        }
+    }
+
+    void stop() {
+        if (sampler != null) sampler.shutdownNow();
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException ignored) {}
+            registeredAs = null;
+        }
+    }
+
+    // From accept() returning to the connection being served
+    void recordAccept(long nanos) {
+        accepted.increment();
+        acceptNanos.record(nanos);
+    }
+
+    // One inbound message, from decoded to fully handled (fan-out included)
+    void recordRead(long nanos) {
+        messagesIn.increment();
+        readNanos.record(nanos);
+    }
+
+    // Queueing one frame to every recipient
+    void recordFanout(int recipients, long nanos) {
+        messagesOut.add(recipients);
+        fanoutNanos.record(nanos);
+    }
+
+    // One socket write of a batch of frames, flush included
+    void recordSend(long nanos) {
+        sendNanos.record(nanos);
+    }
+
+    void recordFailedSend() {
+        failedSends.increment();
+    }
+
+    // A client dropped because it stopped answering heartbeats
+    void recordIdleDisconnect() {
+        idleDisconnects.increment();
+    }
+
+    // A reader paused because its client went over the rate limit
+    void recordThrottle() {
+        throttledReads.increment();
+    }
+
+    void recordRateLimitDisconnect() {
+        rateLimitDisconnects.increment();
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1e9;
+        lastSample = now;
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        inPerSecond = (in - lastIn) / seconds;
+        outPerSecond = (out - lastOut) / seconds;
+        lastIn = in;
+        lastOut = out;
+        sampledActive = activeConnections.getAsLong();
+        sampledQueued = queuedFrames.getAsLong();
+
+        acceptP99 = percentiles(acceptNanos)[1];
+        double[] read = percentiles(readNanos);
+        readP50 = read[0];
+        readP99 = read[1];
+        double[] fanout = percentiles(fanoutNanos);
+        fanoutP50 = fanout[0];
+        fanoutP99 = fanout[1];
+        fanoutMax = fanout[2];
+        sendP99 = percentiles(sendNanos)[1];
+    }
+
+    // p50, p99 and max in microseconds of everything recorded since the previous sample
+    private double[] percentiles(LatencyHistogram h) {
+        window.reset();
+        h.drainTo(window);
+        return new double[] {window.valueAt(0.50) / 1e3, window.valueAt(0.99) / 1e3, window.max() / 1e3};
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return sampledActive;
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        return sampledQueued;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getFailedSends() {
+        return failedSends.sum();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    @Override
+    public long getThrottledReads() {
+        return throttledReads.sum();
+    }
+
+    @Override
+    public long getRateLimitDisconnects() {
+        return rateLimitDisconnects.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return inPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return outPerSecond;
+    }
+
+    @Override
+    public double getAcceptP99Micros() {
+        return acceptP99;
+    }
+
+    @Override
+    public double getReadP50Micros() {
+        return readP50;
+    }
+
+    @Override
+    public double getReadP99Micros() {
+        return readP99;
+    }
+
+    @Override
+    public double getFanoutP50Micros() {
+        return fanoutP50;
+    }
+
+    @Override
+    public double getFanoutP99Micros() {
+        return fanoutP99;
+    }
+
+    @Override
+    public double getFanoutMaxMicros() {
+        return fanoutMax;
+    }
+
+    @Override
+    public double getSendP99Micros() {
+        return sendP99;
+    }
+}
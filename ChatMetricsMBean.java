@@ -0,0 +1,38 @@
+// JMX view of ChatMetrics; rates and latencies cover the last sampling interval (one second)
+public interface ChatMetricsMBean {
+    long getAcceptedConnections();
+
+    long getActiveConnections();
+
+    long getQueuedFrames();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getFailedSends();
+
+    long getIdleDisconnects();
+
+    long getThrottledReads();
+
+    long getRateLimitDisconnects();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getAcceptP99Micros();
+
+    double getReadP50Micros();
+
+    double getReadP99Micros();
+
+    double getFanoutP50Micros();
+
+    double getFanoutP99Micros();
+
+    double getFanoutMaxMicros();
+
+    double getSendP99Micros();
+}
@@ -0,0 +1,611 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Non-blocking engine for MyChatAppServer, sharded by core. Each selector loop (shard) owns
+ * its connections and its own members of every room, and is the only thread that touches
+ * them. The acceptor hands a new socket to the least loaded shard (or round-robin, with
+ * -Dchat.shardAssign=round-robin). A broadcast becomes one task per shard that has members
+ * in the room: the sending shard fans out to its own members directly and hands the others
+ * the frame through single-producer queues, one per pair of shards that actually talk,
+ * created on first use, so the cross-core traffic per message is one queue slot per shard
+ * rather than one per recipient.
+ * Connections start on the writeUTF layout (2-byte length + modified UTF-8) like the blocking
+ * handlers and switch to ChatProtocol v2 frames when the client asks for it.
+ */
+public class ChatNioEngine {
+    private static final int INITIAL_READ_BUFFER = 1024;
+    private static final int MAX_GATHER = 64;
+    private static final int BACKLOG = Integer.getInteger("chat.backlog", 1024);
+    private static final boolean ROUND_ROBIN = "round-robin".equalsIgnoreCase(System.getProperty("chat.shardAssign"));
+    private static final int SHARD_QUEUE = Integer.getInteger("chat.shardQueue", 1024);
+    private static final ThreadLocal<IoLoop> CURRENT = new ThreadLocal<>();
+
+    private final MyChatAppServer server;
+    private final int port;
+    private final IoLoop[] loops;
+    // Shards with at least one member in each room; a shard adds and removes only itself
+    private final ConcurrentMap<String, Set<IoLoop>> roomShards = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    ChatNioEngine(MyChatAppServer server, int port, int ioThreads) {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+    }
+
+    // Accepts on the calling thread until the engine is stopped or the server socket fails
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) loops[i] = new IoLoop(i);
+        for (IoLoop loop : loops) {
+            Thread t = new Thread(loop, "chat-io-" + loop.index);
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+            int next = 0;
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop target = loops[next];
+                next = (next + 1) % loops.length;
+                if (!ROUND_ROBIN) {
+                    for (IoLoop l : loops) {
+                        if (l.load.get() < target.load.get()) target = l;
+                    }
+                }
+                target.register(channel);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    void stop() {
+        running = false;
+        for (IoLoop loop : loops) {
+            if (loop != null) loop.selector.wakeup();
+        }
+    }
+
+    // Consumes the caller's reference. Called by MyChatAppServer in place of its own fan-out.
+    void broadcast(String room, ChatFrame frame, ChatSession exclude) {
+        Set<IoLoop> shards = roomShards.get(room);
+        if (shards != null) {
+            for (IoLoop l : shards) {
+                ChatFrame ref = frame.retain();
+                l.execute(() -> l.fanOut(room, ref, exclude));
+            }
+        }
+        frame.release();
+    }
+
+    // Room membership mirrors ChatRooms, per shard; applied on the connection's own shard
+    void join(String room, ChatSession s) {
+        Connection c = (Connection) s;
+        c.loop.execute(() -> c.loop.addMember(room, c));
+    }
+
+    void leave(String room, ChatSession s) {
+        Connection c = (Connection) s;
+        c.loop.execute(() -> c.loop.removeMember(room, c));
+    }
+
+    private final class IoLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        final Queue<Accepted> pendingAccepts = new ConcurrentLinkedQueue<>();
+        final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Tasks from shard i arrive on fromShard[i], created by shard i on its first send here;
+        // tasks from any other thread on external
+        final AtomicReferenceArray<SpscQueue<Runnable>> fromShard;
+        final Queue<Runnable> external = new ConcurrentLinkedQueue<>();
+        // Tasks for shard i that did not fit its queue, kept in order until they do; loop thread only,
+        // created on first overflow
+        final ArrayDeque<Runnable>[] backlog;
+        final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // Connections assigned to this shard, counted from accept to close
+        final AtomicInteger load = new AtomicInteger();
+        // This shard's members of each room; loop thread only
+        final Map<String, ArrayList<Connection>> members = new HashMap<>();
+        Thread thread;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        IoLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.fromShard = new AtomicReferenceArray<>(loops.length);
+            this.backlog = new ArrayDeque[loops.length];
+        }
+
+        void register(SocketChannel channel) {
+            load.incrementAndGet();
+            pendingAccepts.add(new Accepted(channel, System.nanoTime()));
+            wakeup();
+        }
+
+        void scheduleWrite(Connection c) {
+            pendingWrites.add(c);
+            // the loop flushes its own pending writes before it selects again
+            if (Thread.currentThread() != thread) wakeup();
+        }
+
+        // At most one selector wakeup per loop iteration, however many threads post work
+        void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+        }
+
+        // Runs the task on this shard: inline when already on it, otherwise queued in order
+        void execute(Runnable task) {
+            IoLoop from = CURRENT.get();
+            if (from == this) {
+                task.run();
+                return;
+            }
+            if (from == null) {
+                external.add(task);
+            } else {
+                ArrayDeque<Runnable> pending = from.backlog[index];
+                if ((pending != null && !pending.isEmpty()) || !queueFrom(from).offer(task)) {
+                    if (pending == null) from.backlog[index] = pending = new ArrayDeque<>();
+                    pending.add(task);
+                }
+            }
+            wakeup();
+        }
+
+        // The queue `from` sends to this shard on; only called on from's own thread
+        SpscQueue<Runnable> queueFrom(IoLoop from) {
+            SpscQueue<Runnable> q = fromShard.get(from.index);
+            if (q == null) {
+                q = new SpscQueue<>(SHARD_QUEUE);
+                fromShard.set(from.index, q);
+            }
+            return q;
+        }
+
+        void addMember(String room, Connection c) {
+            if (c.closed || room.equals(c.memberOf)) return;
+            if (c.memberOf != null) removeMember(c.memberOf, c);
+            ArrayList<Connection> list = members.get(room);
+            if (list == null) {
+                list = new ArrayList<>();
+                members.put(room, list);
+                roomShards.compute(room, (r, shards) -> {
+                    if (shards == null) shards = ConcurrentHashMap.newKeySet();
+                    shards.add(this);
+                    return shards;
+                });
+            }
+            c.memberOf = room;
+            c.memberSlot = list.size();
+            list.add(c);
+        }
+
+        void removeMember(String room, Connection c) {
+            if (!room.equals(c.memberOf)) return;
+            ArrayList<Connection> list = members.get(room);
+            // swap the last member into the leaver's slot
+            Connection last = list.remove(list.size() - 1);
+            if (last != c) {
+                list.set(c.memberSlot, last);
+                last.memberSlot = c.memberSlot;
+            }
+            if (list.isEmpty()) {
+                members.remove(room);
+                roomShards.computeIfPresent(room, (r, shards) -> {
+                    shards.remove(this);
+                    return shards.isEmpty() ? null : shards;
+                });
+            }
+            c.memberOf = null;
+        }
+
+        // Consumes the caller's reference
+        void fanOut(String room, ChatFrame frame, ChatSession exclude) {
+            long start = System.nanoTime();
+            int recipients = 0;
+            List<Connection> failed = null;
+            ArrayList<Connection> list = members.get(room);
+            if (list != null) {
+                for (int i = 0, n = list.size(); i < n; i++) {
+                    Connection c = list.get(i);
+                    if (c == exclude) continue;
+                    try {
+                        c.send(frame.retain());
+                        recipients++;
+                    } catch (IOException e) {
+                        // closing now would reshuffle the list under us
+                        if (failed == null) failed = new ArrayList<>();
+                        failed.add(c);
+                        ChatLog.warn("Failed to send to " + c.getClientName() + ": " + e.getMessage());
+                    }
+                }
+            }
+            frame.release();
+            server.metrics.recordFanout(recipients, System.nanoTime() - start);
+            if (failed != null) {
+                server.metrics.recordFailedSend();
+                for (Connection c : failed) c.close();
+            }
+        }
+
+        private void runTasks() {
+            for (int i = 0; i < fromShard.length(); i++) {
+                SpscQueue<Runnable> q = fromShard.get(i);
+                if (q == null) continue;
+                Runnable task;
+                while ((task = q.poll()) != null) task.run();
+            }
+            Runnable task;
+            while ((task = external.poll()) != null) task.run();
+        }
+
+        // Moves what it can of the overflow into the target queues; true if anything is left
+        private boolean pushBacklog() {
+            boolean left = false;
+            for (int i = 0; i < backlog.length; i++) {
+                ArrayDeque<Runnable> pending = backlog[i];
+                if (pending == null || pending.isEmpty()) continue;
+                IoLoop target = loops[i];
+                while (!pending.isEmpty() && target.queueFrom(this).offer(pending.peek())) pending.poll();
+                target.wakeup();
+                left |= !pending.isEmpty();
+            }
+            return left;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            CURRENT.set(this);
+            boolean backlogged = false;
+            while (running) {
+                try {
+                    // a backlog is retried every millisecond, otherwise sleep until woken
+                    if (backlogged) selector.select(1);
+                    else selector.select();
+                    wakeupPending.set(false);
+                    registerPending();
+                    runTasks();
+                    flushPending();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) c.onReadable();
+                            if (key.isValid() && key.isWritable()) c.flush();
+                        } catch (IOException e) {
+                            ChatLog.info("Connection lost from " + c.getClientName() + ": " + e.getMessage());
+                            c.close();
+                        }
+                    }
+                    // what this iteration's reads fanned out to our own connections
+                    flushPending();
+                    backlogged = pushBacklog();
+                } catch (IOException e) {
+                    ChatLog.error("I/O loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).closeSilently();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+
+        private void registerPending() {
+            Accepted accepted;
+            while ((accepted = pendingAccepts.poll()) != null) {
+                SocketChannel channel = accepted.channel;
+                try {
+                    Connection c = new Connection(channel, this);
+                    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                    server.metrics.recordAccept(System.nanoTime() - accepted.at);
+                    server.addClient(c);
+                    ChatLog.info("Accepted connection from " + c.getClientName());
+                    server.onJoin(c);
+                } catch (IOException e) {
+                    load.decrementAndGet();
+                    ChatLog.warn("Failed to register connection: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        private void flushPending() {
+            Connection c;
+            while ((c = pendingWrites.poll()) != null) {
+                try {
+                    c.flush();
+                } catch (IOException e) {
+                    ChatLog.info("Connection lost from " + c.getClientName() + ": " + e.getMessage());
+                    c.close();
+                }
+            }
+        }
+    }
+
+    // A socket handed from the acceptor to a loop, with when it was accepted
+    private static final class Accepted {
+        final SocketChannel channel;
+        final long at;
+
+        Accepted(SocketChannel channel, long at) {
+            this.channel = channel;
+            this.at = at;
+        }
+    }
+
+    private final class Connection implements ChatSession {
+        final SocketChannel channel;
+        final IoLoop loop;
+        final String clientName;
+        final Queue<ChatFrame> outbound = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicBoolean writeScheduled = new AtomicBoolean();
+        // Frames taken off the queue and possibly partly written, each with this connection's
+        // own view of the shared bytes; owned by the loop thread
+        final ArrayDeque<ChatFrame> inFlightFrames = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        SelectionKey key;
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        // Inbound and outbound framing, only written on the loop thread; v2 is also read by the idle check
+        volatile boolean v2;
+        volatile long lastRead = System.nanoTime();
+        final RateLimiter limiter = server.newRateLimiter();
+        // Set while reads are stopped for the rate limiter; loop thread only
+        boolean paused;
+        ChatProtocol.Wire wire = ChatProtocol.Wire.LEGACY;
+        final long id = server.newSessionId();
+        volatile String room;
+        // Room this connection is listed under in its shard, and its index there; loop thread only
+        String memberOf;
+        int memberSlot;
+        volatile boolean closed;
+        private final AtomicBoolean counted = new AtomicBoolean(true);
+
+        Connection(SocketChannel channel, IoLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.clientName = channel.getRemoteAddress().toString();
+        }
+
+        @Override
+        public String getClientName() {
+            return clientName;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getRoom() {
+            return room;
+        }
+
+        @Override
+        public void setRoom(String room) {
+            this.room = room;
+        }
+
+        // Safe from any thread: the frame is queued and the owning loop does the write
+        @Override
+        public void send(ChatFrame frame) throws IOException {
+            if (closed) {
+                frame.release();
+                throw new IOException("Connection closed");
+            }
+            if (queued.incrementAndGet() > MyChatAppServer.OUTBOUND_QUEUE
+                    && MyChatAppServer.OVERFLOW == MyChatAppServer.OverflowPolicy.DISCONNECT) {
+                queued.decrementAndGet();
+                frame.release();
+                throw new IOException("Slow consumer, " + MyChatAppServer.OUTBOUND_QUEUE + " frames queued");
+            }
+            outbound.add(frame);
+            if (writeScheduled.compareAndSet(false, true)) loop.scheduleWrite(this);
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) throw new EOFException("end of stream");
+            lastRead = System.nanoTime();
+            handleBuffered();
+        }
+
+        // Handles the complete messages in readBuffer, stopping early if the rate limiter
+        // pauses this connection; the rest waits there until resumeReads
+        private void handleBuffered() throws IOException {
+            readBuffer.flip();
+            int needed = 0;
+            while (!paused) {
+                int pos = readBuffer.position();
+                int at = readBuffer.arrayOffset() + pos;
+                boolean keepOpen;
+                long pause;
+                if (v2) {
+                    if (readBuffer.remaining() < 4) break;
+                    int len = readBuffer.getInt(pos);
+                    ChatProtocol.checkLength(len);
+                    if (readBuffer.remaining() < 4 + len) {
+                        needed = 4 + len;
+                        break;
+                    }
+                    ChatProtocol.Message m = ChatProtocol.decode(readBuffer.array(), at + 4, len);
+                    readBuffer.position(pos + 4 + len);
+                    pause = server.checkRate(this, limiter, 4 + len);
+                    keepOpen = pause != RateLimiter.DISCONNECT && server.onFrame(this, m.type, m.payload);
+                } else {
+                    if (readBuffer.remaining() < 2) break;
+                    int len = readBuffer.getShort(pos) & 0xFFFF;
+                    if (readBuffer.remaining() < 2 + len) {
+                        needed = 2 + len;
+                        break;
+                    }
+                    String msg = new DataInputStream(new ByteArrayInputStream(readBuffer.array(), at, 2 + len)).readUTF();
+                    readBuffer.position(pos + 2 + len);
+                    pause = server.checkRate(this, limiter, 2 + len);
+                    if (pause == RateLimiter.DISCONNECT) {
+                        keepOpen = false;
+                    } else if (ChatProtocol.isHello(msg)) {
+                        v2 = true;
+                        send(ChatFrame.upgradeAck(ChatProtocol.COMPRESS && ChatProtocol.HELLO_DEFLATE.equals(msg)));
+                        keepOpen = true;
+                    } else {
+                        keepOpen = server.onMessage(this, msg);
+                    }
+                }
+                if (!keepOpen) {
+                    close();
+                    return;
+                }
+                if (pause > 0) pauseReads(pause);
+            }
+            readBuffer.compact();
+            if (needed > readBuffer.capacity()) {
+                // the pending frame is larger than the buffer; grow just enough to hold it
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        // Stops selecting for reads; the timer wheel resumes them, so a pause lasts at least a tick
+        private void pauseReads(long nanos) {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            server.timers.schedule(() -> loop.execute(this::resumeReads), TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+
+        private void resumeReads() {
+            if (closed) return;
+            paused = false;
+            try {
+                handleBuffered();
+            } catch (IOException e) {
+                ChatLog.info("Connection lost from " + clientName + ": " + e.getMessage());
+                close();
+                return;
+            }
+            if (!paused && !closed) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private int readOps() {
+            return paused ? 0 : SelectionKey.OP_READ;
+        }
+
+        // Runs on the loop thread only. Queued frames go out in gathering writes, and a full
+        // queue is trimmed here (never mid-frame) under the drop-oldest policy.
+        void flush() throws IOException {
+            if (closed) return;
+            writeScheduled.set(false);
+            if (MyChatAppServer.OVERFLOW == MyChatAppServer.OverflowPolicy.DROP_OLDEST) {
+                ChatFrame dropped;
+                while (queued.get() > MyChatAppServer.OUTBOUND_QUEUE && (dropped = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    dropped.release();
+                }
+            }
+            while (true) {
+                ChatFrame next;
+                while (inFlight.size() < MAX_GATHER && (next = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    ByteBuffer view = next.buffer(wire);
+                    if (next.upgradesProtocol()) wire = next.upgradeWire();
+                    if (view == null) {
+                        // too large for this client's framing
+                        next.release();
+                        continue;
+                    }
+                    inFlightFrames.add(next);
+                    inFlight.add(view);
+                }
+                if (inFlight.isEmpty()) break;
+                int n = 0;
+                for (ByteBuffer b : inFlight) gather[n++] = b;
+                long start = System.nanoTime();
+                channel.write(gather, 0, n);
+                server.metrics.recordSend(System.nanoTime() - start);
+                Arrays.fill(gather, 0, n, null);
+                while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                    inFlight.poll();
+                    inFlightFrames.poll().release();
+                }
+                if (!inFlight.isEmpty()) {
+                    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(readOps());
+        }
+
+        @Override
+        public int queuedFrames() {
+            return queued.get();
+        }
+
+        @Override
+        public long lastReadNanos() {
+            return lastRead;
+        }
+
+        @Override
+        public boolean answersHeartbeats() {
+            return v2;
+        }
+
+        void close() {
+            if (closed) return;
+            closeSilently();
+            server.removeClient(this);
+        }
+
+        // Loop-thread state (inFlight) is left for the garbage collector; only queued frames are released
+        @Override
+        public void closeSilently() {
+            closed = true;
+            if (counted.compareAndSet(true, false)) loop.load.decrementAndGet();
+            ChatFrame f;
+            while ((f = outbound.poll()) != null) f.release();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
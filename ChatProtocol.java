@@ -0,0 +1,259 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Version 2 of the chat wire format. Every frame is
+ *
+ *   int   length     bytes that follow this field
+ *   byte  type       CHAT, CONTROL, PRESENCE, ACK or HEARTBEAT
+ *   long  sender id  0 for the server itself
+ *   long  timestamp  epoch millis, set by the server
+ *   bytes payload    UTF-8, length - HEADER bytes
+ *
+ * A client asks for it by sending HELLO as its first writeUTF message. The server answers
+ * HELLO_OK (still as writeUTF) and from then on both directions use v2 frames. Clients that
+ * never ask, and servers that never answer, simply stay on the legacy writeUTF strings.
+ *
+ * A client that sends HELLO_DEFLATE instead may also get HELLO_OK_DEFLATE back. Then either
+ * side may compress the payload of a frame of at least chat.compressMin bytes (zlib, level
+ * chat.compressLevel) and marks it by setting COMPRESSED on the type byte; the length field
+ * counts the compressed bytes. Frames that would not get smaller are sent as they are.
+ *
+ * The server sends an empty HEARTBEAT to a v2 client it has not heard from for a while;
+ * the client answers with one of its own. A client that stays silent past the idle timeout
+ * is taken for dead and disconnected.
+ */
+public final class ChatProtocol {
+    static final int VERSION = 2;
+    // NUL-prefixed so no line a user types can be mistaken for the handshake
+    static final String HELLO = "\u0000chat-proto " + VERSION;
+    static final String HELLO_OK = HELLO + " ok";
+    static final String HELLO_DEFLATE = HELLO + " deflate";
+    static final String HELLO_OK_DEFLATE = HELLO_OK + " deflate";
+
+    static final byte CHAT = 1;
+    static final byte CONTROL = 2;
+    static final byte PRESENCE = 3;
+    static final byte ACK = 4;
+    static final byte HEARTBEAT = 5;
+    static final byte COMPRESSED = (byte) 0x80;
+
+    static final int HEADER = 1 + 8 + 8;
+    static final int MAX_FRAME = Integer.getInteger("chat.maxFrame", 1 << 20);
+    private static final int NEGOTIATE_TIMEOUT_MS = Integer.getInteger("chat.negotiateTimeoutMs", 1000);
+    // Whether a client offers compression and a server accepts it
+    static final boolean COMPRESS = !"false".equalsIgnoreCase(System.getProperty("chat.compress"));
+    static final int COMPRESS_MIN = Integer.getInteger("chat.compressMin", 512);
+    static final int COMPRESS_LEVEL = Integer.getInteger("chat.compressLevel", Deflater.BEST_SPEED);
+
+    // Native zlib state is costly to set up and only freed by end(). Writers may be virtual
+    // threads, one per connection, so instead of one per thread a few of each are pooled and
+    // any made beyond that are ended after use.
+    private static final int ZLIB_POOL = Integer.getInteger("chat.zlibPool", Runtime.getRuntime().availableProcessors());
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(Math.max(1, ZLIB_POOL));
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(Math.max(1, ZLIB_POOL));
+
+    private ChatProtocol() {}
+
+    // What a connection speaks once the handshake is over
+    enum Wire { LEGACY, V2, V2_DEFLATE }
+
+    static final class Message {
+        final byte type;
+        final long senderId;
+        final long timestamp;
+        final String payload;
+        // Bytes the frame took on the wire, length field included
+        final int wireLength;
+
+        Message(byte type, long senderId, long timestamp, String payload, int wireLength) {
+            this.type = type;
+            this.senderId = senderId;
+            this.timestamp = timestamp;
+            this.payload = payload;
+            this.wireLength = wireLength;
+        }
+    }
+
+    // Whole frame including the length field
+    static byte[] encode(byte type, long senderId, long timestamp, String payload) throws UTFDataFormatException {
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        int len = HEADER + body.length;
+        if (len > MAX_FRAME) throw new UTFDataFormatException("frame too long: " + len + " bytes");
+        byte[] out = new byte[4 + len];
+        putInt(out, 0, len);
+        out[4] = type;
+        putLong(out, 5, senderId);
+        putLong(out, 13, timestamp);
+        System.arraycopy(body, 0, out, 4 + HEADER, body.length);
+        return out;
+    }
+
+    // Same, with the payload compressed when that is worth it
+    static byte[] encode(byte type, long senderId, long timestamp, String payload, boolean deflate)
+            throws UTFDataFormatException {
+        byte[] frame = encode(type, senderId, timestamp, payload);
+        return deflate ? compress(frame) : frame;
+    }
+
+    // A COMPRESSED copy of an encoded frame, or the frame itself when it is below
+    // COMPRESS_MIN or does not shrink
+    static byte[] compress(byte[] frame) {
+        int bodyLen = frame.length - 4 - HEADER;
+        if (bodyLen < COMPRESS_MIN || (frame[4] & COMPRESSED) != 0) return frame;
+        Deflater d = DEFLATERS.poll();
+        if (d == null) d = new Deflater(COMPRESS_LEVEL);
+        try {
+            d.reset();
+            d.setInput(frame, 4 + HEADER, bodyLen);
+            d.finish();
+            byte[] out = new byte[frame.length];
+            int n = 4 + HEADER;
+            while (!d.finished() && n < out.length) n += d.deflate(out, n, out.length - n);
+            if (!d.finished() || n >= frame.length) return frame;
+            putInt(out, 0, n - 4);
+            System.arraycopy(frame, 4, out, 4, HEADER);
+            out[4] |= COMPRESSED;
+            return Arrays.copyOf(out, n);
+        } finally {
+            if (!DEFLATERS.offer(d)) d.end();
+        }
+    }
+
+    static void write(DataOutputStream out, byte type, String payload) throws IOException {
+        write(out, type, payload, false);
+    }
+
+    static void write(DataOutputStream out, byte type, String payload, boolean deflate) throws IOException {
+        out.write(encode(type, 0, System.currentTimeMillis(), payload, deflate));
+    }
+
+    static Message read(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        checkLength(len);
+        byte[] frame = new byte[len];
+        in.readFully(frame);
+        return decode(frame, 0, len);
+    }
+
+    // Bytes writeUTF puts on the wire for s: the 2-byte length and modified UTF-8
+    static int utfWireLength(String s) {
+        int n = 2;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char ch = s.charAt(i);
+            n += ch >= 0x0001 && ch <= 0x007F ? 1 : ch <= 0x07FF ? 2 : 3;
+        }
+        return n;
+    }
+
+    // Decodes the bytes after the length field
+    static Message decode(byte[] buf, int off, int len) throws IOException {
+        byte type = buf[off];
+        String payload = (type & COMPRESSED) == 0
+                ? new String(buf, off + HEADER, len - HEADER, StandardCharsets.UTF_8)
+                : inflate(buf, off + HEADER, len - HEADER);
+        return new Message((byte) (type & ~COMPRESSED), getLong(buf, off + 1), getLong(buf, off + 9), payload, 4 + len);
+    }
+
+    // Refuses to expand past what an uncompressed frame could have carried
+    private static String inflate(byte[] buf, int off, int len) throws IOException {
+        Inflater inf = INFLATERS.poll();
+        if (inf == null) inf = new Inflater();
+        int limit = MAX_FRAME - HEADER;
+        byte[] out = new byte[Math.min(limit, Math.max(64, len * 4))];
+        int n = 0;
+        try {
+            inf.reset();
+            inf.setInput(buf, off, len);
+            while (!inf.finished()) {
+                if (n == out.length) {
+                    if (n == limit) throw new IOException("Compressed frame inflates past " + limit + " bytes");
+                    out = Arrays.copyOf(out, (int) Math.min(limit, 2L * n));
+                }
+                int got = inf.inflate(out, n, out.length - n);
+                if (got == 0 && (inf.needsInput() || inf.needsDictionary())) throw new IOException("Truncated compressed frame");
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame: " + e.getMessage());
+        } finally {
+            if (!INFLATERS.offer(inf)) inf.end();
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // The CONTROL payload for a line a user typed: "exit", or "/command args" without the
+    // slash. Null when the line is chat text
+    static String command(String line) {
+        String trimmed = line.trim();
+        if ("exit".equalsIgnoreCase(trimmed)) return trimmed;
+        if (trimmed.startsWith("/")) return trimmed.substring(1);
+        return null;
+    }
+
+    static boolean isHello(String msg) {
+        return HELLO.equals(msg) || HELLO_DEFLATE.equals(msg);
+    }
+
+    static void checkLength(int len) throws IOException {
+        if (len < HEADER || len > MAX_FRAME) throw new IOException("Bad frame length " + len);
+    }
+
+    // Client side of the handshake. Broadcasts that arrive before the answer are still legacy
+    // strings and are handed to earlyMessages; returns false if the server never agrees.
+    static boolean negotiate(Socket socket, DataInputStream in, DataOutputStream out,
+                             Consumer<String> earlyMessages) throws IOException {
+        return negotiate(socket, in, out, earlyMessages, false) != Wire.LEGACY;
+    }
+
+    // As above, also offering compression when offerDeflate is set
+    static Wire negotiate(Socket socket, DataInputStream in, DataOutputStream out,
+                          Consumer<String> earlyMessages, boolean offerDeflate) throws IOException {
+        out.writeUTF(offerDeflate ? HELLO_DEFLATE : HELLO);
+        out.flush();
+        int previousTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(NEGOTIATE_TIMEOUT_MS);
+        try {
+            while (true) {
+                String msg = in.readUTF();
+                if (HELLO_OK.equals(msg)) return Wire.V2;
+                if (HELLO_OK_DEFLATE.equals(msg)) return Wire.V2_DEFLATE;
+                earlyMessages.accept(msg);
+            }
+        } catch (SocketTimeoutException e) {
+            return Wire.LEGACY;
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (b[off + i] & 0xFF);
+        return v;
+    }
+}
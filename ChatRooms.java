@@ -0,0 +1,40 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Room name to members index. Each room's member set is a concurrent set, so joining or
+ * leaving touches one entry of one room and never copies anyone's membership, and a broadcast
+ * iterates only the room it targets while members come and go.
+ */
+public class ChatRooms {
+    private final ConcurrentMap<String, Set<ChatSession>> rooms = new ConcurrentHashMap<>();
+
+    void join(String room, ChatSession session) {
+        // add inside compute, so a leave emptying the room cannot drop the set we are joining
+        rooms.compute(room, (r, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(session);
+            return members;
+        });
+    }
+
+    void leave(String room, ChatSession session) {
+        // drop the room with its last member; compute keeps this atomic against a concurrent join
+        rooms.computeIfPresent(room, (r, members) -> {
+            members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    // Live, weakly consistent view; empty if nobody is in the room
+    Set<ChatSession> members(String room) {
+        Set<ChatSession> members = rooms.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    Set<String> names() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+}
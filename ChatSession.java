@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+// A connected chat user, independent of the engine (blocking or NIO) that drives its socket
+public interface ChatSession {
+    String getClientName();
+
+    // Sender id carried in v2 frames
+    long getId();
+
+    // Room the client currently talks in; null once it has left
+    String getRoom();
+
+    void setRoom(String room);
+
+    // Takes over one reference to the frame and releases it once written, dropped or refused
+    void send(ChatFrame frame) throws IOException;
+
+    // Frames waiting to be written, for metrics; approximate under concurrent sends
+    int queuedFrames();
+
+    // System.nanoTime() of the last message read from the client
+    long lastReadNanos();
+
+    // Whether the client speaks v2 and so answers HEARTBEAT frames
+    boolean answersHeartbeats();
+
+    void closeSilently();
+}
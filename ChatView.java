@@ -0,0 +1,271 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Word-wrapped chat history that only lays out and paints what is on screen. Each line is
+ * wrapped once per width and its height cached, so adding a message costs the new line's
+ * wrap plus a pass over int offsets, not a relayout of the whole history. Only the newest
+ * maxLines are kept. Lines may be appended from any thread; everything that arrives within
+ * one frame is added and repainted together. A line can carry a delivery state for messages
+ * the user sent: pending lines are drawn dimmed and failed ones in red.
+ */
+public class ChatView extends JComponent implements Scrollable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int FRAME_MILLIS = 16;
+    private static final int INSET = 4;
+
+    enum Delivery { PENDING, SENT, FAILED }
+
+    static final class Line {
+        final String text;
+        // null for lines that are not outgoing messages
+        volatile Delivery delivery;
+        // Wrapped rows for wrapWidth; EDT only
+        private String[] rows;
+        private int wrapWidth = -1;
+
+        Line(String text) {
+            this.text = text;
+        }
+    }
+
+    private final int visibleRows;
+    private final int visibleColumns;
+    private final int maxLines;
+    // Oldest line at ring[head]; EDT only
+    private final Line[] ring;
+    private int head;
+    private int size;
+    // tops[i] is the y of the i-th oldest line, tops[size] the total height
+    private int[] tops = new int[1];
+    private int layoutWidth = -1;
+    private final Queue<Line> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer frameTimer = new Timer(FRAME_MILLIS, e -> flush());
+
+    ChatView(int visibleRows, int visibleColumns, int maxLines) {
+        this.visibleRows = visibleRows;
+        this.visibleColumns = visibleColumns;
+        this.maxLines = maxLines;
+        this.ring = new Line[maxLines];
+        frameTimer.setRepeats(false);
+        setOpaque(true);
+        setBackground(UIManager.getColor("TextArea.background"));
+        setForeground(UIManager.getColor("TextArea.foreground"));
+        setFont(UIManager.getFont("TextArea.font"));
+    }
+
+    // Safe from any thread
+    Line append(String text) {
+        return append(text, null);
+    }
+
+    Line append(String text, Delivery delivery) {
+        Line l = new Line(text);
+        l.delivery = delivery;
+        pending.add(l);
+        scheduleFlush();
+        return l;
+    }
+
+    // Safe from any thread; the change shows with the next frame
+    void setDelivery(Line l, Delivery delivery) {
+        l.delivery = delivery;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(frameTimer::restart);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        boolean atBottom = isScrolledToBottom();
+        int evictedHeight = 0;
+        int lineHeight = lineHeight();
+        boolean added = false;
+        Line l;
+        while ((l = pending.poll()) != null) {
+            added = true;
+            if (size == maxLines) {
+                evictedHeight += height(ring[head], lineHeight);
+                ring[head] = null;
+                head = (head + 1) % maxLines;
+                size--;
+            }
+            ring[(head + size) % maxLines] = l;
+            size++;
+        }
+        if (!added) {
+            // only delivery states changed
+            repaint();
+            return;
+        }
+        relayout();
+        revalidate();
+        JViewport viewport = viewport();
+        if (viewport != null) {
+            if (atBottom) {
+                scrollRectToVisible(new Rectangle(0, tops[size] - 1, 1, 1));
+            } else if (evictedHeight > 0) {
+                // keep the lines being read still while older ones drop off the top
+                Point p = viewport.getViewPosition();
+                viewport.setViewPosition(new Point(p.x, Math.max(0, p.y - evictedHeight)));
+            }
+        }
+        repaint();
+    }
+
+    // Wraps whatever has not been wrapped for the current width and rebuilds the offsets
+    private void relayout() {
+        int width = wrapWidth();
+        FontMetrics fm = getFontMetrics(getFont());
+        if (tops.length < size + 1) tops = new int[Math.max(size + 1, Math.min(maxLines + 1, tops.length * 2))];
+        int y = INSET;
+        for (int i = 0; i < size; i++) {
+            Line l = line(i);
+            if (l.wrapWidth != width) {
+                l.rows = wrap(l.text, fm, width);
+                l.wrapWidth = width;
+            }
+            tops[i] = y;
+            y += l.rows.length * fm.getHeight();
+        }
+        tops[size] = y;
+        layoutWidth = width;
+    }
+
+    private Line line(int i) {
+        return ring[(head + i) % maxLines];
+    }
+
+    private int height(Line l, int lineHeight) {
+        return l.rows == null ? lineHeight : l.rows.length * lineHeight;
+    }
+
+    private int lineHeight() {
+        return getFontMetrics(getFont()).getHeight();
+    }
+
+    private int wrapWidth() {
+        JViewport viewport = viewport();
+        int width = viewport != null ? viewport.getExtentSize().width : getWidth();
+        if (width <= 0) width = getPreferredScrollableViewportSize().width;
+        return Math.max(1, width - 2 * INSET);
+    }
+
+    private JViewport viewport() {
+        return getParent() instanceof JViewport ? (JViewport) getParent() : null;
+    }
+
+    private boolean isScrolledToBottom() {
+        JViewport viewport = viewport();
+        if (viewport == null) return true;
+        Rectangle r = viewport.getViewRect();
+        return r.y + r.height >= tops[size] - lineHeight();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (layoutWidth != wrapWidth()) relayout();
+        return new Dimension(layoutWidth + 2 * INSET, tops[size] + INSET);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (layoutWidth != wrapWidth()) relayout();
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setFont(getFont());
+        FontMetrics fm = g.getFontMetrics();
+        int lineHeight = fm.getHeight();
+        for (int i = firstLineAt(clip.y); i < size && tops[i] < clip.y + clip.height; i++) {
+            g.setColor(colorFor(line(i).delivery));
+            int y = tops[i] + fm.getAscent();
+            for (String row : line(i).rows) {
+                g.drawString(row, INSET, y);
+                y += lineHeight;
+            }
+        }
+    }
+
+    private Color colorFor(Delivery delivery) {
+        if (delivery == Delivery.PENDING) return Color.GRAY;
+        if (delivery == Delivery.FAILED) return Color.RED;
+        return getForeground();
+    }
+
+    // Index of the line covering y, by binary search over the cached offsets
+    private int firstLineAt(int y) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (tops[mid] <= y) lo = mid;
+            else hi = mid - 1;
+        }
+        return Math.max(0, lo);
+    }
+
+    // Greedy word wrap; a word wider than the view is broken between characters
+    private static String[] wrap(String text, FontMetrics fm, int width) {
+        List<String> rows = new ArrayList<>(1);
+        for (String para : text.split("\n", -1)) {
+            int start = 0;
+            do {
+                int w = 0;
+                int end = start;
+                int lastSpace = -1;
+                while (end < para.length()) {
+                    w += fm.charWidth(para.charAt(end));
+                    if (w > width) break;
+                    if (para.charAt(end) == ' ') lastSpace = end;
+                    end++;
+                }
+                if (end == para.length()) {
+                    rows.add(para.substring(start));
+                    break;
+                }
+                int cut = lastSpace > start ? lastSpace : Math.max(end, start + 1);
+                rows.add(para.substring(start, cut));
+                start = cut;
+                while (start < para.length() && para.charAt(start) == ' ') start++;
+            } while (start < para.length());
+        }
+        return rows.toArray(new String[0]);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        FontMetrics fm = getFontMetrics(getFont());
+        return new Dimension(visibleColumns * fm.charWidth('m') + 2 * INSET, visibleRows * fm.getHeight() + 2 * INSET);
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? lineHeight() : 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height - lineHeight() : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        JViewport viewport = viewport();
+        return viewport != null && viewport.getHeight() > tops[size] + INSET;
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load client for EchoServer. For every connection count and message size it opens that
+ * many connections, each on its own thread, and has each send a message, wait for all of it
+ * to come back, and send the next. It reports messages/s, echoed bytes/s in total and per
+ * connection, and round-trip latency percentiles. Every message starts with its sequence
+ * number, checked on the way back.
+ *
+ *   java EchoClient --connections 1,8,64 --sizes 64,4096,65536 --duration 5
+ *
+ * Options: --host, --port, --connections and --sizes (comma separated), --duration and
+ * --warmup (seconds per run). Sizes go up to MAX_SIZE: a whole message is written before any
+ * of its echo is read, so it has to fit in the socket buffers. Exits 1 when a connection failed or an echo did not match.
+ */
+public class EchoClient {
+    static final int MAX_SIZE = 256 << 10;
+
+    private String host = "localhost";
+    private int port = EchoServer.PORT;
+    private int[] connectionCounts = {1, 8, 64};
+    private int[] sizes = {64, 4096, 65536};
+    private int durationSeconds = 5;
+    private int warmupSeconds = 1;
+
+    public static void main(String[] args) throws Exception {
+        EchoClient client = new EchoClient();
+        client.parse(args);
+        System.exit(client.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String v = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--host": host = v; i++; break;
+                case "--port": port = Integer.parseInt(v); i++; break;
+                case "--connections": connectionCounts = ints(v); i++; break;
+                case "--sizes": sizes = sizes(v); i++; break;
+                case "--duration": durationSeconds = Integer.parseInt(v); i++; break;
+                case "--warmup": warmupSeconds = Integer.parseInt(v); i++; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    private static int[] sizes(String list) {
+        int[] values = ints(list);
+        for (int size : values) {
+            if (size > MAX_SIZE) throw new IllegalArgumentException("Message size " + size + " over " + MAX_SIZE);
+        }
+        return values;
+    }
+
+    private boolean run() throws Exception {
+        System.out.printf("%-6s %8s %12s %12s %14s %9s %9s %9s %9s%n",
+                "conns", "size", "msgs/s", "MB/s", "MB/s per conn", "p50 us", "p99 us", "p99.9 us", "max us");
+        boolean ok = true;
+        for (int connections : connectionCounts) {
+            for (int size : sizes) {
+                ok &= run(connections, Math.max(8, size));
+            }
+        }
+        return ok;
+    }
+
+    // One run: all connections open before the clock starts, and only after the warm-up is counted
+    private boolean run(int connections, int size) throws Exception {
+        LatencyHistogram rtt = new LatencyHistogram();
+        LongAdder messages = new LongAdder();
+        LongAdder failures = new LongAdder();
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch done = new CountDownLatch(connections);
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            Thread t = new Thread(() -> {
+                boolean open = false;
+                try (SocketChannel channel = SocketChannel.open()) {
+                    channel.socket().setTcpNoDelay(true);
+                    channel.connect(new InetSocketAddress(host, port));
+                    open = true;
+                    connected.countDown();
+                    connected.await();
+                    pingPong(channel, size, measureFrom, end, rtt, messages);
+                } catch (IOException | InterruptedException e) {
+                    failures.increment();
+                    System.err.println("Connection failed: " + e.getMessage());
+                    if (!open) connected.countDown();
+                } finally {
+                    done.countDown();
+                }
+            }, "echo-client-" + c);
+            t.setDaemon(true);
+            threads.add(t);
+        }
+        for (Thread t : threads) t.start();
+        done.await();
+
+        double seconds = durationSeconds;
+        double msgsPerSec = messages.sum() / seconds;
+        // bytes that made the round trip, counted once
+        double mbPerSec = msgsPerSec * size / 1e6;
+        System.out.printf("%-6d %8d %,12.0f %12.1f %14.2f %9.1f %9.1f %9.1f %9.1f%n",
+                connections, size, msgsPerSec, mbPerSec, mbPerSec / connections,
+                rtt.valueAt(0.5) / 1e3, rtt.valueAt(0.99) / 1e3, rtt.valueAt(0.999) / 1e3, rtt.max() / 1e3);
+        return failures.sum() == 0 && messages.sum() > 0;
+    }
+
+    private static void pingPong(SocketChannel channel, int size, long measureFrom, long end, LatencyHistogram rtt,
+            LongAdder messages) throws IOException {
+        ByteBuffer out = ByteBuffer.allocateDirect(size);
+        ByteBuffer in = ByteBuffer.allocateDirect(size);
+        for (long seq = 0; ; seq++) {
+            long start = System.nanoTime();
+            if (start >= end) return;
+            out.clear();
+            out.putLong(0, seq);
+            while (out.hasRemaining()) channel.write(out);
+            in.clear();
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0) throw new IOException("Server closed the connection");
+            }
+            if (in.getLong(0) != seq) throw new IOException("Echo of message " + seq + " came back as " + in.getLong(0));
+            if (start >= measureFrom) {
+                rtt.record(System.nanoTime() - start);
+                messages.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Raw byte echo server, the baseline for telling network limits from application limits:
+ * whatever a client sends comes straight back, read into and written from a direct
+ * ByteBuffer per connection, never decoded. Any number of clients at once.
+ *
+ *   java EchoServer [blocking|virtual|nio] [port]
+ *
+ * "blocking" and "virtual" run a blocking read/write loop per connection on a platform or
+ * virtual thread (see ChatExecutors); "nio" multiplexes every connection over one selector
+ * per core. A connection whose client is slow to read stops being read until its echo has
+ * been written out, so the server never buffers more than BUFFER bytes per connection.
+ * SimpleServer keeps the writeUTF "Echo: " protocol for the chat-style clients.
+ */
+public class EchoServer {
+    public static final int PORT = 1334;
+    static final int BUFFER = Integer.getInteger("echo.buffer", 64 << 10);
+    static final int IO_THREADS = Integer.getInteger("echo.ioThreads", Runtime.getRuntime().availableProcessors());
+
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            ChatLog.info("EchoServer starting on port " + port + " (" + mode + ")");
+            serve(server, mode);
+        }
+    }
+
+    // Accepts clients until the server channel is closed
+    static void serve(ServerSocketChannel server, String mode) {
+        if ("nio".equalsIgnoreCase(mode)) {
+            serveNio(server);
+            return;
+        }
+        ExecutorService executor = ChatExecutors.newHandlerExecutor("virtual".equalsIgnoreCase(mode) ? "virtual" : "platform");
+        try {
+            while (true) {
+                SocketChannel client = server.accept();
+                executor.submit(() -> echo(client));
+            }
+        } catch (IOException e) {
+            if (server.isOpen()) ChatLog.error("Server error: " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void echo(SocketChannel channel) {
+        try (SocketChannel client = channel) {
+            client.socket().setTcpNoDelay(true);
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+            while (client.read(buf) >= 0) {
+                buf.flip();
+                while (buf.hasRemaining()) client.write(buf);
+                buf.clear();
+            }
+        } catch (IOException e) {
+            ChatLog.debug("Echo client gone: " + e.getMessage());
+        }
+    }
+
+    private static void serveNio(ServerSocketChannel server) {
+        Loop[] loops = new Loop[Math.max(1, IO_THREADS)];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new Loop();
+                Thread t = new Thread(loops[i], "echo-io-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            // accept blocking on this thread, hand each connection to a loop in turn
+            for (int next = 0; ; next = (next + 1) % loops.length) {
+                SocketChannel client = server.accept();
+                client.socket().setTcpNoDelay(true);
+                client.configureBlocking(false);
+                loops[next].add(client);
+            }
+        } catch (IOException e) {
+            if (server.isOpen()) ChatLog.error("Server error: " + e.getMessage(), e);
+        } finally {
+            for (Loop loop : loops) {
+                if (loop != null) loop.close();
+            }
+        }
+    }
+
+    // One selector thread; the attachment of each key is its connection's buffer, kept in fill mode
+    private static final class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel client) {
+            incoming.add(client);
+            selector.wakeup();
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    SocketChannel client;
+                    while ((client = incoming.poll()) != null) {
+                        try {
+                            client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFFER));
+                        } catch (ClosedChannelException e) {
+                            // gone before it was registered
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            handle(key);
+                        } catch (IOException e) {
+                            ChatLog.debug("Echo client gone: " + e.getMessage());
+                            closeKey(key);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // selector closed at shutdown
+            }
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (!key.isValid()) return;
+            SocketChannel client = (SocketChannel) key.channel();
+            ByteBuffer buf = (ByteBuffer) key.attachment();
+            if (key.isReadable() && client.read(buf) < 0) {
+                closeKey(key);
+                return;
+            }
+            buf.flip();
+            client.write(buf);
+            buf.compact();
+            // whatever the socket would not take yet is written before anything more is read
+            key.interestOps(buf.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private static void closeKey(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
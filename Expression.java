@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled arithmetic expression: numbers, variables, + - * /, unary minus and parentheses,
+ * such as "(a+b)*c/d". compile() tokenizes and parses the source once into a tree of nodes
+ * with every variable already resolved to a slot, so evaluating it again with new values does
+ * no string work at all. Constant subexpressions are folded while parsing, and an expression
+ * with no variables is evaluated once, up front.
+ *
+ * Arithmetic is double throughout. Dividing by zero throws ArithmeticException; a syntax
+ * error throws IllegalArgumentException naming the offending position. Instances are
+ * immutable and may be shared between threads.
+ */
+public final class Expression {
+    static final int MAX_LENGTH = Integer.getInteger("calc.maxExpression", 4096);
+    private static final int MAX_DEPTH = 256;
+    static final String DIVISION_BY_ZERO = "Division by zero is not allowed.";
+
+    private interface Node {
+        double eval(double[] values);
+    }
+
+    private static final class Constant implements Node {
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double eval(double[] values) {
+            return value;
+        }
+    }
+
+    private final String source;
+    private final Node root;
+    private final String[] variables;
+    // For expressions without variables: the value, or why there is none
+    private final double constant;
+    private final String constantError;
+
+    private Expression(String source, Node root, String[] variables) {
+        this.source = source;
+        this.root = root;
+        this.variables = variables;
+        double value = Double.NaN;
+        String error = null;
+        if (variables.length == 0) {
+            try {
+                value = root.eval(new double[0]);
+            } catch (ArithmeticException e) {
+                error = e.getMessage();
+            }
+        }
+        this.constant = value;
+        this.constantError = error;
+    }
+
+    static Expression compile(String source) {
+        if (source.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("Expression longer than " + MAX_LENGTH + " characters");
+        }
+        Parser parser = new Parser(source);
+        Node root = parser.expression(0);
+        if (parser.token != Parser.END) throw parser.unexpected();
+        return new Expression(source, root, parser.names.toArray(new String[0]));
+    }
+
+    String source() {
+        return source;
+    }
+
+    boolean isConstant() {
+        return variables.length == 0;
+    }
+
+    // Values passed to evaluate are in slot order, 0 to variableCount() - 1
+    int variableCount() {
+        return variables.length;
+    }
+
+    String variable(int slot) {
+        return variables[slot];
+    }
+
+    int slot(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    double evaluate(double... values) {
+        if (variables.length == 0) {
+            if (constantError != null) throw new ArithmeticException(constantError);
+            return constant;
+        }
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " values, got " + values.length);
+        }
+        return root.eval(values);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static Node binary(char op, Node left, Node right) {
+        Node node;
+        switch (op) {
+            case '+':
+                node = values -> left.eval(values) + right.eval(values);
+                break;
+            case '-':
+                node = values -> left.eval(values) - right.eval(values);
+                break;
+            case '*':
+                node = values -> left.eval(values) * right.eval(values);
+                break;
+            default:
+                node = values -> {
+                    double divisor = right.eval(values);
+                    if (divisor == 0) throw new ArithmeticException(DIVISION_BY_ZERO);
+                    return left.eval(values) / divisor;
+                };
+                break;
+        }
+        // a constant division by zero stays unfolded so it fails when evaluated, not here
+        if (left instanceof Constant && right instanceof Constant && !(op == '/' && ((Constant) right).value == 0)) {
+            return new Constant(node.eval(null));
+        }
+        return node;
+    }
+
+    // Recursive descent over a hand-written tokenizer; one token of lookahead
+    private static final class Parser {
+        static final int END = -1;
+        static final int NUMBER = -2;
+        static final int NAME = -3;
+
+        final String src;
+        final List<String> names = new ArrayList<>();
+        int pos;
+        // an operator or parenthesis character, or END, NUMBER or NAME
+        int token;
+        int tokenStart;
+        double number;
+        String name;
+
+        Parser(String src) {
+            this.src = src;
+            next();
+        }
+
+        // expression := term (('+' | '-') term)*
+        Node expression(int depth) {
+            if (depth > MAX_DEPTH) throw new IllegalArgumentException("Expression nested too deeply");
+            Node left = term(depth);
+            while (token == '+' || token == '-') {
+                char op = (char) token;
+                next();
+                left = binary(op, left, term(depth));
+            }
+            return left;
+        }
+
+        // term := unary (('*' | '/') unary)*
+        Node term(int depth) {
+            Node left = unary(depth);
+            while (token == '*' || token == '/') {
+                char op = (char) token;
+                next();
+                left = binary(op, left, unary(depth));
+            }
+            return left;
+        }
+
+        // unary := ('-' | '+') unary | number | name | '(' expression ')'
+        Node unary(int depth) {
+            if (depth > MAX_DEPTH) throw new IllegalArgumentException("Expression nested too deeply");
+            switch (token) {
+                case '-': {
+                    next();
+                    Node operand = unary(depth + 1);
+                    if (operand instanceof Constant) return new Constant(-((Constant) operand).value);
+                    return values -> -operand.eval(values);
+                }
+                case '+':
+                    next();
+                    return unary(depth + 1);
+                case NUMBER: {
+                    Node node = new Constant(number);
+                    next();
+                    return node;
+                }
+                case NAME: {
+                    int slot = names.indexOf(name);
+                    if (slot < 0) {
+                        slot = names.size();
+                        names.add(name);
+                    }
+                    int index = slot;
+                    next();
+                    return values -> values[index];
+                }
+                case '(': {
+                    next();
+                    Node inner = expression(depth + 1);
+                    if (token != ')') throw unexpected();
+                    next();
+                    return inner;
+                }
+                default:
+                    throw unexpected();
+            }
+        }
+
+        void next() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+            tokenStart = pos;
+            if (pos == src.length()) {
+                token = END;
+                return;
+            }
+            char c = src.charAt(pos);
+            if (isDigit(c) || c == '.') {
+                while (pos < src.length() && isDigit(src.charAt(pos))) pos++;
+                if (pos < src.length() && src.charAt(pos) == '.') {
+                    pos++;
+                    while (pos < src.length() && isDigit(src.charAt(pos))) pos++;
+                }
+                if (pos < src.length() && (src.charAt(pos) == 'e' || src.charAt(pos) == 'E')) {
+                    int mark = pos++;
+                    if (pos < src.length() && (src.charAt(pos) == '+' || src.charAt(pos) == '-')) pos++;
+                    if (pos < src.length() && isDigit(src.charAt(pos))) {
+                        while (pos < src.length() && isDigit(src.charAt(pos))) pos++;
+                    } else {
+                        // not an exponent after all; the letter is left for the next token
+                        pos = mark;
+                    }
+                }
+                if (pos - tokenStart == 1 && c == '.') throw unexpected();
+                number = Double.parseDouble(src.substring(tokenStart, pos));
+                token = NUMBER;
+            } else if (Character.isLetter(c) || c == '_') {
+                while (pos < src.length() && (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos) == '_')) pos++;
+                name = src.substring(tokenStart, pos);
+                token = NAME;
+            } else if ("+-*/()".indexOf(c) >= 0) {
+                pos++;
+                token = c;
+            } else {
+                throw unexpected();
+            }
+        }
+
+        IllegalArgumentException unexpected() {
+            if (tokenStart >= src.length()) return new IllegalArgumentException("Unexpected end of expression");
+            return new IllegalArgumentException("Unexpected '" + src.charAt(tokenStart) + "' at position " + (tokenStart + 1));
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+}
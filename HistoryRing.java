@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last N frames of a room, in a preallocated ring that any number of threads add to
+ * and read from without locks. A writer claims a sequence number, stores its frame in that
+ * slot and then publishes the sequence; a reader keeps a frame only if the slot showed the
+ * sequence it expected both before and after reading it. Readers therefore never block
+ * writers, and at worst skip a slot that was overwritten while they looked.
+ *
+ * A ring that is dropped is closed, which releases its frames; a writer that still held the
+ * ring takes its frame back out again, so a closed ring never keeps a reference.
+ */
+public class HistoryRing {
+    private static final long WRITING = -1;
+
+    private final int capacity;
+    private final AtomicReferenceArray<ChatFrame> frames;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private volatile boolean closed;
+    // When the ring was last added to or read, for evicting the least recently used rooms
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    HistoryRing(int capacity) {
+        this.capacity = capacity;
+        this.frames = new AtomicReferenceArray<>(capacity);
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, WRITING);
+    }
+
+    // Takes over one reference to the frame; the frame it evicts is released
+    void add(ChatFrame frame) {
+        lastUsedNanos = System.nanoTime();
+        long seq = head.getAndIncrement();
+        int slot = (int) (seq % capacity);
+        published.set(slot, WRITING);
+        ChatFrame evicted = frames.getAndSet(slot, frame);
+        published.set(slot, seq);
+        if (evicted != null) evicted.release();
+        if (closed) {
+            // raced with close(); whichever of us takes the frame out releases it
+            ChatFrame mine = frames.getAndSet(slot, null);
+            if (mine != null) mine.release();
+        }
+    }
+
+    long lastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    // Releases every frame held; anything added afterwards is released by add itself
+    void close() {
+        closed = true;
+        for (int slot = 0; slot < capacity; slot++) {
+            published.set(slot, WRITING);
+            ChatFrame evicted = frames.getAndSet(slot, null);
+            if (evicted != null) evicted.release();
+        }
+    }
+
+    // Oldest first. Every returned frame carries a reference owned by the caller.
+    List<ChatFrame> snapshot() {
+        lastUsedNanos = System.nanoTime();
+        long end = head.get();
+        long start = Math.max(0, end - capacity);
+        List<ChatFrame> out = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq % capacity);
+            if (published.get(slot) != seq) continue;
+            ChatFrame frame = frames.get(slot);
+            if (frame == null || !frame.tryRetain()) continue;
+            if (published.get(slot) != seq) {
+                // overwritten while we read it
+                frame.release();
+                continue;
+            }
+            out.add(frame);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: exact below 32, then 32 buckets per
+ * power of two, so any recorded value is reported within about 3%. Recording is a couple
+ * of bit operations and one atomic increment, cheap enough for per-message use.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // Value at quantile q (0..1), e.g. 0.99 for p99; 0 when nothing was recorded
+    long valueAt(double q) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highestValue(i);
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) return highestValue(i);
+        }
+        return 0;
+    }
+
+    // Moves everything recorded so far into `into` and clears this histogram, for interval stats
+    void drainTo(LatencyHistogram into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.getAndSet(i, 0);
+            if (c != 0) into.counts.addAndGet(i, c);
+        }
+        long n = total.sumThenReset();
+        long s = sum.sumThenReset();
+        into.total.add(n);
+        into.sum.add(s);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+    }
+
+    private static int bucket(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long low = (long) (SUB_COUNT + bucket % SUB_COUNT) << (exp - SUB_BITS);
+        return low + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
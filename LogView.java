@@ -0,0 +1,157 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log panel that can take lines from any number of threads at any rate. Producers only add
+ * to a lock-free queue; a Swing Timer moves whatever has arrived onto the screen in a single
+ * document insert every few frames. Only the most recent lines are kept, both in the queue
+ * and in the text area, so neither the EDT nor the heap grows with the event rate.
+ * While paused the timer is stopped, so the only work left is the producers' enqueue.
+ */
+public class LogView extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int REFRESH_MILLIS = 100;
+
+    private static final class Line {
+        final Level level;
+        final String text;
+
+        Line(Level level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+    private final int maxLines;
+    private final Queue<Line> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    // The last maxLines lines of every level, so a new filter can be applied after the fact; EDT only
+    private final ArrayDeque<Line> window = new ArrayDeque<>();
+    private final JTextArea area;
+    private final JComboBox<Level> levelBox = new JComboBox<>(Level.values());
+    private final JToggleButton pauseButton = new JToggleButton("Pause");
+    private final Timer timer = new Timer(REFRESH_MILLIS, e -> drain());
+    private volatile Level threshold = Level.INFO;
+    private int shownLines;
+
+    LogView(int rows, int columns, int maxLines) {
+        super(new BorderLayout(4, 4));
+        this.maxLines = maxLines;
+        area = new JTextArea(rows, columns);
+        area.setEditable(false);
+        add(new JScrollPane(area, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+                JScrollPane.HORIZONTAL_SCROLLBAR_NEVER), BorderLayout.CENTER);
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        levelBox.setSelectedItem(threshold);
+        levelBox.addActionListener(e -> setThreshold((Level) levelBox.getSelectedItem()));
+        pauseButton.addActionListener(e -> setPaused(pauseButton.isSelected()));
+        JButton clearButton = new JButton("Clear");
+        clearButton.addActionListener(e -> clear());
+        controls.add(new JLabel("Level:"));
+        controls.add(levelBox);
+        controls.add(pauseButton);
+        controls.add(clearButton);
+        add(controls, BorderLayout.NORTH);
+
+        timer.start();
+    }
+
+    void info(String text) {
+        log(Level.INFO, text);
+    }
+
+    // Safe from any thread. Once more than maxLines are waiting the oldest are discarded,
+    // since they would be scrolled out of the window anyway.
+    void log(Level level, String text) {
+        pending.add(new Line(level, text));
+        if (pendingCount.incrementAndGet() > maxLines && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    void setPaused(boolean paused) {
+        pauseButton.setSelected(paused);
+        if (paused) {
+            timer.stop();
+        } else {
+            drain();
+            timer.start();
+        }
+    }
+
+    private void setThreshold(Level level) {
+        threshold = level;
+        StringBuilder sb = new StringBuilder();
+        shownLines = 0;
+        for (Line l : window) {
+            if (l.level.compareTo(level) >= 0) {
+                sb.append(format(l)).append('\n');
+                shownLines++;
+            }
+        }
+        area.setText(sb.toString());
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+
+    private void clear() {
+        window.clear();
+        shownLines = 0;
+        area.setText("");
+    }
+
+    // Runs on the EDT: one insert for everything that arrived since the last tick, then one
+    // removal of whatever fell out of the window
+    private void drain() {
+        StringBuilder sb = new StringBuilder();
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            Line note = new Line(Level.WARN, "(" + lost + " log lines dropped)");
+            addToWindow(note);
+            if (appendIfShown(sb, note)) shownLines++;
+        }
+        Line l;
+        while ((l = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            addToWindow(l);
+            if (appendIfShown(sb, l)) shownLines++;
+        }
+        if (sb.length() == 0) return;
+        area.append(sb.toString());
+        if (shownLines > maxLines) {
+            try {
+                area.replaceRange("", 0, area.getLineEndOffset(shownLines - maxLines - 1));
+                shownLines = maxLines;
+            } catch (BadLocationException e) {
+                setThreshold(threshold);
+            }
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+
+    private void addToWindow(Line l) {
+        window.addLast(l);
+        if (window.size() > maxLines) window.removeFirst();
+    }
+
+    private boolean appendIfShown(StringBuilder sb, Line l) {
+        if (l.level.compareTo(threshold) < 0) return false;
+        sb.append(format(l)).append('\n');
+        return true;
+    }
+
+    private static String format(Line l) {
+        return l.level == Level.INFO ? l.text : l.level + " " + l.text;
+    }
+}
@@ -1,43 +1,85 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class MyChatAppClientGUI {
     private static final String HOST = "localhost";
     private static final int PORT = 1333;
+    // Messages kept in the chat view; older ones are dropped from memory
+    private static final int HISTORY_LINES = Integer.getInteger("chat.gui.historyLines", 5000);
+    private static final int MAX_SEND_BATCH = 64;
+    private static final long EXIT_WAIT_MILLIS = 500;
 
     private JFrame frame;
-    private JTextArea chatArea;
+    private ChatView chatView;
     private JTextField inputField;
     private JButton sendButton;
 
-    private Socket socket;
-    private DataInputStream dis;
-    private DataOutputStream dout;
+    // Set by the connect thread before the reader and writer start; volatile for safeClose on the EDT
+    private volatile Socket socket;
+    private volatile DataInputStream dis;
+    private volatile DataOutputStream dout;
+    // true once the server accepted ChatProtocol v2; otherwise plain writeUTF strings
+    private volatile boolean v2;
+    // true when the server also agreed to compressed frames (chat.compress, on by default)
+    private volatile boolean deflate;
+    // The EDT only enqueues; the writer thread does every blocking write
+    private final BlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+    private volatile Thread writer;
+
+    // A message waiting in the outbox and the chat line that shows its delivery state
+    private static final class Outgoing {
+        // Answer to a server HEARTBEAT, queued like any message so only the writer touches dout
+        static final Outgoing HEARTBEAT = new Outgoing("", null);
+
+        final String text;
+        final ChatView.Line line;
+
+        Outgoing(String text, ChatView.Line line) {
+            this.text = text;
+            this.line = line;
+        }
+    }
 
     public MyChatAppClientGUI() {
         buildUI();
-        connectToServer();
-        startReaderThread();
+        // connecting and the handshake block, up to a second against a legacy server, so not on the EDT
+        Thread connect = new Thread(() -> {
+            if (!connectToServer()) return;
+            startReaderThread();
+            startWriterThread();
+            SwingUtilities.invokeLater(() -> {
+                inputField.setEditable(true);
+                sendButton.setEnabled(true);
+                inputField.requestFocusInWindow();
+            });
+        }, "chat-connect");
+        connect.setDaemon(true);
+        connect.start();
     }
 
     private void buildUI() {
         frame = new JFrame("MyChatApp - GUI Client");
-        chatArea = new JTextArea(20, 50);
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
+        chatView = new ChatView(20, 50, HISTORY_LINES);
 
-        JScrollPane scrollPane = new JScrollPane(chatArea,
+        JScrollPane scrollPane = new JScrollPane(chatView,
                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 
         inputField = new JTextField();
         sendButton = new JButton("Send");
+        // enabled once connected
+        inputField.setEditable(false);
+        sendButton.setEnabled(false);
 
         JPanel bottom = new JPanel(new BorderLayout(5, 5));
         bottom.add(inputField, BorderLayout.CENTER);
@@ -66,16 +108,26 @@ public class MyChatAppClientGUI {
         frame.setVisible(true);
     }
 
-    private void connectToServer() {
+    // Connect thread; true once the handshake is done and the streams are ready
+    private boolean connectToServer() {
         appendToChat("Connecting to " + HOST + ':' + PORT + "...");
         try {
-            socket = new Socket(HOST, PORT);
-            dis = new DataInputStream(socket.getInputStream());
-            dout = new DataOutputStream(socket.getOutputStream());
-            appendToChat("Connected to server: " + socket.getRemoteSocketAddress());
+            Socket s = new Socket(HOST, PORT);
+            socket = s;
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            dis = in;
+            appendToChat("Connected to server: " + s.getRemoteSocketAddress());
+            ChatProtocol.Wire wire = ChatProtocol.negotiate(s, in, out,
+                    early -> appendToChat("Server: " + early), ChatProtocol.COMPRESS);
+            v2 = wire != ChatProtocol.Wire.LEGACY;
+            deflate = wire == ChatProtocol.Wire.V2_DEFLATE;
+            dout = out;
+            return true;
         } catch (IOException e) {
             appendToChat("Failed to connect: " + e.getMessage());
-            disableInput();
+            safeClose();
+            return false;
         }
     }
 
@@ -83,9 +135,21 @@ public class MyChatAppClientGUI {
         Thread reader = new Thread(() -> {
             try {
                 while (socket != null && socket.isConnected() && !socket.isClosed()) {
-                    String incoming = dis.readUTF();
-                    appendToChat("Server: " + incoming);
-                    if ("exit".equalsIgnoreCase(incoming.trim())) {
+                    boolean exit;
+                    if (v2) {
+                        ChatProtocol.Message frame = ChatProtocol.read(dis);
+                        if (frame.type == ChatProtocol.HEARTBEAT) {
+                            outbox.add(Outgoing.HEARTBEAT);
+                            continue;
+                        }
+                        appendToChat("Server: " + frame.payload);
+                        exit = frame.type == ChatProtocol.CONTROL && "exit".equalsIgnoreCase(frame.payload.trim());
+                    } else {
+                        String incoming = dis.readUTF();
+                        appendToChat("Server: " + incoming);
+                        exit = "exit".equalsIgnoreCase(incoming.trim());
+                    }
+                    if (exit) {
                         appendToChat("Server requested exit. Closing connection.");
                         break;
                     }
@@ -101,37 +165,82 @@ public class MyChatAppClientGUI {
         reader.start();
     }
 
+    private void startWriterThread() {
+        if (dout == null) return;
+        writer = new Thread(this::writeLoop, "chat-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Runs on the EDT and never blocks: the message is shown as pending and queued
     private void sendMessage() {
         String text = inputField.getText();
         if (text == null || text.trim().isEmpty()) return;
+        inputField.setText("");
+        if (writer == null || !writer.isAlive()) {
+            appendToChat("Not connected.");
+            return;
+        }
+        outbox.add(new Outgoing(text, chatView.append("Me: " + text, ChatView.Delivery.PENDING)));
+        // if user typed exit, the writer closes after sending it
+        if (isExit(text)) disableInput();
+    }
+
+    // Writes whatever is queued and flushes once per batch; a batch is marked sent once flushed
+    private void writeLoop() {
+        List<Outgoing> batch = new ArrayList<>();
         try {
-            if (dout != null) {
-                dout.writeUTF(text);
+            while (true) {
+                batch.add(outbox.take());
+                outbox.drainTo(batch, MAX_SEND_BATCH - 1);
+                boolean exit = false;
+                for (Outgoing o : batch) {
+                    if (o == Outgoing.HEARTBEAT) {
+                        ChatProtocol.write(dout, ChatProtocol.HEARTBEAT, "");
+                        continue;
+                    }
+                    writeMessage(o.text);
+                    exit |= isExit(o.text);
+                }
                 dout.flush();
-                appendToChat("Me: " + text);
-            } else {
-                appendToChat("Not connected.");
+                for (Outgoing o : batch) {
+                    if (o.line != null) chatView.setDelivery(o.line, ChatView.Delivery.SENT);
+                }
+                batch.clear();
+                if (exit) break;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             appendToChat("Failed to send: " + e.getMessage());
+            outbox.drainTo(batch);
+            for (Outgoing o : batch) {
+                if (o.line != null) chatView.setDelivery(o.line, ChatView.Delivery.FAILED);
+            }
+        } finally {
             disableInput();
             safeClose();
-        } finally {
-            inputField.setText("");
         }
+    }
 
-        if ("exit".equalsIgnoreCase(text.trim())) {
-            // if user typed exit, close after sending
-            disableInput();
-            safeClose();
+    // Writer thread only
+    private void writeMessage(String text) throws IOException {
+        if (v2) {
+            String command = ChatProtocol.command(text);
+            if (command != null) ChatProtocol.write(dout, ChatProtocol.CONTROL, command, deflate);
+            else ChatProtocol.write(dout, ChatProtocol.CHAT, text, deflate);
+        } else {
+            dout.writeUTF(text);
         }
     }
 
+    private static boolean isExit(String text) {
+        return "exit".equalsIgnoreCase(text.trim());
+    }
+
+    // Callable from any thread; bursts are batched into one repaint by the view
     private void appendToChat(String line) {
-        SwingUtilities.invokeLater(() -> {
-            chatArea.append(line + "\n");
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        chatView.append(line);
     }
 
     private void disableInput() {
@@ -154,13 +263,13 @@ public class MyChatAppClientGUI {
     }
 
     private void closeAndExit() {
-        // send exit to server then close
-        try {
-            if (dout != null) {
-                dout.writeUTF("exit");
-                dout.flush();
-            }
-        } catch (IOException ignored) {}
+        // send exit to server then close, waiting only briefly for a congested link
+        if (writer != null && writer.isAlive()) {
+            outbox.add(new Outgoing("exit", null));
+            try {
+                writer.join(EXIT_WAIT_MILLIS);
+            } catch (InterruptedException ignored) {}
+        }
         safeClose();
         System.exit(0);
     }
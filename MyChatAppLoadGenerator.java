@@ -0,0 +1,254 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load generator for MyChatAppServer. Opens many simulated clients, has them send
+ * at a fixed total rate, and measures end-to-end fan-out latency: every message carries its
+ * scheduled send time, and every client that receives it records now minus that time.
+ * Measuring from the schedule rather than the actual write keeps a stalled server from
+ * hiding its own latency (coordinated omission).
+ *
+ *   java MyChatAppLoadGenerator --clients 500 --rate 1000 --duration 30 --size 100
+ *
+ * Options: --host, --port (or --ports a,b,c to spread the clients over federated nodes),
+ * --clients, --rate (msgs/s, all clients together), --duration and --warmup (seconds),
+ * --size (payload bytes), --room, --protocol v2|v2-deflate|legacy, --max-errors and
+ * --max-p99-ms. Exits 1 when a limit is exceeded or nothing was delivered, so CI can gate on it.
+ */
+public class MyChatAppLoadGenerator {
+    private String host = "localhost";
+    private int[] ports = {MyChatAppServer.PORT};
+    private int clients = 100;
+    private double rate = 200;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private int size = 100;
+    private String room;
+    private boolean useV2 = true;
+    private boolean useDeflate;
+    private long maxErrors = 0;
+    private double maxP99Millis = Double.MAX_VALUE;
+
+    private final String marker = "lg" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + " ";
+    // recorded by the readers; the reporter moves it into `total` once a second
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean running = true;
+    private volatile long measureFrom;
+
+    public static void main(String[] args) throws Exception {
+        MyChatAppLoadGenerator gen = new MyChatAppLoadGenerator();
+        gen.parse(args);
+        System.exit(gen.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String v = i + 1 < args.length ? args[i + 1] : "";
+            switch (args[i]) {
+                case "--host": host = v; i++; break;
+                case "--port": ports = new int[] {Integer.parseInt(v)}; i++; break;
+                case "--ports": ports = Arrays.stream(v.split(",")).mapToInt(Integer::parseInt).toArray(); i++; break;
+                case "--clients": clients = Integer.parseInt(v); i++; break;
+                case "--rate": rate = Double.parseDouble(v); i++; break;
+                case "--duration": durationSeconds = Integer.parseInt(v); i++; break;
+                case "--warmup": warmupSeconds = Integer.parseInt(v); i++; break;
+                case "--size": size = Integer.parseInt(v); i++; break;
+                case "--room": room = v; i++; break;
+                case "--protocol":
+                    useV2 = v.toLowerCase(Locale.ROOT).startsWith("v2");
+                    useDeflate = "v2-deflate".equalsIgnoreCase(v);
+                    i++;
+                    break;
+                case "--max-errors": maxErrors = Long.parseLong(v); i++; break;
+                case "--max-p99-ms": maxP99Millis = Double.parseDouble(v); i++; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private boolean run() throws InterruptedException {
+        System.out.printf("Connecting %d clients to %s:%s (%s)%n", clients, host, Arrays.toString(ports), useDeflate ? "v2-deflate" : useV2 ? "v2" : "legacy");
+        // virtual threads when available, since every client needs a reader and a sender
+        ExecutorService executor = ChatExecutors.newHandlerExecutor(
+                ChatExecutors.virtualThreadsAvailable() ? "virtual" : "platform");
+        List<SimClient> sims = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            SimClient c = new SimClient(ports[i % ports.length]);
+            try {
+                c.connect();
+                sims.add(c);
+                executor.submit(c::readLoop);
+            } catch (IOException e) {
+                errors.increment();
+                System.err.println("Connect failed: " + e.getMessage());
+            }
+        }
+        if (sims.isEmpty()) return false;
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long interval = (long) (1e9 * sims.size() / rate);
+        for (int i = 0; i < sims.size(); i++) {
+            SimClient c = sims.get(i);
+            // spread the clients' first sends evenly over one interval
+            long first = start + interval * i / sims.size();
+            executor.submit(() -> c.sendLoop(first, interval, end));
+        }
+
+        LatencyHistogram window = new LatencyHistogram();
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(1000);
+            long s = sent.sum();
+            long r = received.sum();
+            latency.drainTo(window);
+            System.out.printf("sent %8d/s  delivered %10d/s  p50 %7.2f ms  p99 %7.2f ms  errors %d%n",
+                    s - lastSent, r - lastReceived, ms(window.valueAt(0.50)), ms(window.valueAt(0.99)), errors.sum());
+            window.drainTo(total);
+            lastSent = s;
+            lastReceived = r;
+        }
+        // let in-flight messages arrive before closing
+        Thread.sleep(1000);
+        running = false;
+        latency.drainTo(total);
+        for (SimClient c : sims) c.close();
+        executor.shutdownNow();
+        return report();
+    }
+
+    private boolean report() {
+        double p99 = ms(total.valueAt(0.99));
+        System.out.println();
+        System.out.printf("messages sent     %d (%.1f/s)%n", sent.sum(), sent.sum() / (double) (durationSeconds + warmupSeconds));
+        System.out.printf("deliveries        %d measured (%.1f/s)%n", total.count(), total.count() / (double) durationSeconds);
+        System.out.printf("latency ms        p50 %.2f  p99 %.2f  p999 %.2f  max %.2f  mean %.2f%n",
+                ms(total.valueAt(0.50)), p99, ms(total.valueAt(0.999)), ms(total.max()), total.mean() / 1e6);
+        System.out.printf("errors            %d%n", errors.sum());
+        boolean ok = total.count() > 0 && errors.sum() <= maxErrors && p99 <= maxP99Millis;
+        if (!ok) System.out.println("FAILED: no deliveries, or over --max-errors / --max-p99-ms");
+        return ok;
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private void onReceive(String text) {
+        int at = text.indexOf(marker);
+        if (at < 0) return;
+        int from = at + marker.length();
+        int to = text.indexOf(' ', from);
+        try {
+            long scheduled = Long.parseLong(text, from, to < 0 ? text.length() : to, 10);
+            received.increment();
+            if (scheduled >= measureFrom) latency.record(System.nanoTime() - scheduled);
+        } catch (NumberFormatException e) {
+            errors.increment();
+        }
+    }
+
+    private final class SimClient {
+        private final int port;
+        private final ReentrantLock sendLock = new ReentrantLock();
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private boolean v2;
+        private boolean deflate;
+
+        SimClient(int port) {
+            this.port = port;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            ChatProtocol.Wire wire = useV2
+                    ? ChatProtocol.negotiate(socket, in, out, text -> {}, useDeflate)
+                    : ChatProtocol.Wire.LEGACY;
+            v2 = wire != ChatProtocol.Wire.LEGACY;
+            deflate = wire == ChatProtocol.Wire.V2_DEFLATE;
+            if (room != null) send(ChatProtocol.CONTROL, v2 ? "join " + room : "/join " + room);
+        }
+
+        void readLoop() {
+            try {
+                while (running) {
+                    if (!v2) {
+                        onReceive(in.readUTF());
+                        continue;
+                    }
+                    ChatProtocol.Message m = ChatProtocol.read(in);
+                    if (m.type == ChatProtocol.HEARTBEAT) send(ChatProtocol.HEARTBEAT, "");
+                    else onReceive(m.payload);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    errors.increment();
+                    System.err.println("Client disconnected: " + e.getMessage());
+                }
+            }
+        }
+
+        void sendLoop(long first, long interval, long end) {
+            StringBuilder padding = new StringBuilder();
+            while (padding.length() < size) padding.append('x');
+            long next = first;
+            try {
+                while (running && next < end) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    send(ChatProtocol.CHAT, marker + next + " " + padding);
+                    sent.increment();
+                    next += interval;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    errors.increment();
+                    System.err.println("Send failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // Called from the send loop and, for heartbeats, the read loop. A lock rather than a
+        // monitor, so a virtual thread blocked in the write does not pin its carrier
+        private void send(byte type, String text) throws IOException {
+            sendLock.lock();
+            try {
+                if (v2) ChatProtocol.write(out, type, text, deflate);
+                else out.writeUTF(text);
+                out.flush();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -1,124 +1,588 @@
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class MyChatAppServer {
     public static final int PORT = 1333;
-    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Client port of this process, so several federated nodes can share a host
+    static final int LISTEN_PORT = Integer.getInteger("chat.port", PORT);
+    // "blocking" (thread per client) or "nio" (selector loops), e.g. -Dchat.engine=nio
+    static final String ENGINE = System.getProperty("chat.engine", "blocking");
+    static final int IO_THREADS = Integer.getInteger("chat.ioThreads", Runtime.getRuntime().availableProcessors());
+    // Frames a slow client may have queued before the overflow policy kicks in
+    static final int OUTBOUND_QUEUE = Integer.getInteger("chat.outboundQueue", 1024);
+    static final OverflowPolicy OVERFLOW = OverflowPolicy.valueOf(
+            System.getProperty("chat.overflow", "drop-oldest").toUpperCase(Locale.ROOT).replace('-', '_'));
+    static final String DEFAULT_ROOM = System.getProperty("chat.defaultRoom", "lobby");
+    private static final int MAX_ROOM_NAME = 64;
+    // Durable history is off unless a directory is given, e.g. -Dchat.journal.dir=journal
+    static final String JOURNAL_DIR = System.getProperty("chat.journal.dir");
+    static final int JOURNAL_SEGMENT_BYTES = Integer.getInteger("chat.journal.segmentBytes", 64 << 20);
+    static final int JOURNAL_MAX_SEGMENTS = Integer.getInteger("chat.journal.maxSegments", 16);
+    static final int JOURNAL_MAX_PENDING = Integer.getInteger("chat.journal.maxPending", 1_000_000);
+    // Messages per room replayed to a client when it enters the room; 0 turns catch-up off
+    static final int HISTORY_SIZE = Integer.getInteger("chat.history", 50);
+    // Rooms whose history is kept; the least recently used rooms' rings go first. Enforced by
+    // a sweep every HISTORY_SWEEP_MILLIS, so the count may run over in between
+    static final int HISTORY_ROOMS = Integer.getInteger("chat.historyRooms", 1024);
+    static final long HISTORY_SWEEP_MILLIS = Long.getLong("chat.historySweepMs", 1_000);
+    private static final int MAX_WRITE_BATCH = 256;
+    // Federation is off unless this node listens for peers or dials some, see ChatFederation
+    static final int PEER_PORT = Integer.getInteger("chat.peerPort", 0);
+    static final String PEERS = System.getProperty("chat.peers", "");
+    static final String NODE_ID = System.getProperty("chat.nodeId", "node-" + LISTEN_PORT);
+    // v2 clients silent this long get a HEARTBEAT, and silence is checked this often; 0 turns both off
+    static final long HEARTBEAT_MILLIS = Long.getLong("chat.heartbeatMs", 5_000);
+    // Clients heard nothing from for this long are disconnected. Legacy clients cannot answer
+    // heartbeats, so quiet ones are kept unless chat.legacyIdleTimeoutMs is set.
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chat.idleTimeoutMs", 15_000);
+    static final long LEGACY_IDLE_TIMEOUT_MILLIS = Long.getLong("chat.legacyIdleTimeoutMs", 0);
+    // Inbound limits per connection, see RateLimiter; a rate of 0 turns that limit off
+    static final int RATE_MESSAGES = Integer.getInteger("chat.rateMessages", 50);
+    static final int RATE_BURST = Integer.getInteger("chat.rateBurst", 200);
+    static final int RATE_BYTES = Integer.getInteger("chat.rateBytes", 1 << 20);
+    static final int RATE_BURST_BYTES = Integer.getInteger("chat.rateBurstBytes", 4 << 20);
+    // How long a client may stay throttled before it is disconnected; 0 only ever throttles
+    static final long RATE_GRACE_MILLIS = Long.getLong("chat.rateGraceMs", 5_000);
+    // Every connection, for shutdown; messages are routed through rooms instead
+    private final Set<ChatSession> clients = ConcurrentHashMap.newKeySet();
+    private final ChatRooms rooms = new ChatRooms();
+    private final Map<String, HistoryRing> history = new ConcurrentHashMap<>();
+    private ChatJournal journal;
+    private ChatFederation federation;
+    // Set while the sharded NIO engine runs; it keeps per-shard room membership and fans out itself
+    private volatile ChatNioEngine nio;
+    private final ExecutorService executor = ChatExecutors.newHandlerExecutor();
+    // Drives every connection's idle check, one pending entry per connection, and the history sweep
+    final TimingWheel timers = new TimingWheel("chat-timer", Long.getLong("chat.timerTickMs", 100), 512);
+    // Sender ids carried in v2 frames; 0 is the server itself
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    final ChatMetrics metrics = new ChatMetrics(() -> clients.size(), this::queuedFrames);
+
+    // What a full outbound queue does: lose that client's oldest frame, or drop the client
+    enum OverflowPolicy { DROP_OLDEST, DISCONNECT }
 
     public static void main(String[] args) {
         new MyChatAppServer().start();
     }
 
     public void start() {
-        System.out.println("MyChatAppServer starting on port " + PORT);
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        if (JOURNAL_DIR != null) {
+            try {
+                int[] replayed = new int[1];
+                journal = ChatJournal.open(Paths.get(JOURNAL_DIR), JOURNAL_SEGMENT_BYTES, JOURNAL_MAX_SEGMENTS,
+                        JOURNAL_MAX_PENDING, entry -> {
+                            replayed[0]++;
+                            remember(entry.room, ChatFrame.of(entry.type, entry.senderId, entry.timestamp, entry.payload));
+                        });
+                ChatLog.info("Journal " + JOURNAL_DIR + ": replayed " + replayed[0] + " messages");
+                // force the last batch on Ctrl+C too; close() is idempotent
+                Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+            } catch (IOException e) {
+                ChatLog.error("Cannot open journal " + JOURNAL_DIR + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (PEER_PORT > 0 || !PEERS.isEmpty()) {
+            List<String> peers = new ArrayList<>();
+            for (String p : PEERS.split(",")) {
+                if (!p.trim().isEmpty()) peers.add(p.trim());
+            }
+            federation = new ChatFederation(this, NODE_ID, PEER_PORT, peers);
+            try {
+                federation.start();
+            } catch (IOException e) {
+                ChatLog.error("Cannot listen for peers on " + PEER_PORT + ": " + e.getMessage());
+                return;
+            }
+        }
+        metrics.start("server");
+        timers.start();
+        if (HISTORY_SIZE > 0) timers.schedule(this::sweepHistory, HISTORY_SWEEP_MILLIS);
+        if ("nio".equalsIgnoreCase(ENGINE)) {
+            startNio();
+        } else {
+            startBlocking();
+        }
+    }
+
+    private void startBlocking() {
+        ChatLog.info("MyChatAppServer starting on port " + LISTEN_PORT + " (" + ChatExecutors.MODE + " threads)");
+        try (ServerSocket serverSocket = new ServerSocket(LISTEN_PORT)) {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 ClientHandler handler = new ClientHandler(clientSocket);
-                clients.add(handler);
+                addClient(handler);
                 executor.submit(handler);
-                System.out.println("Accepted connection from " + clientSocket.getRemoteSocketAddress());
+                ChatLog.info("Accepted connection from " + clientSocket.getRemoteSocketAddress());
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            ChatLog.error("Server error: " + e.getMessage(), e);
         } finally {
             shutdown();
         }
     }
 
-    private void broadcast(String message, ClientHandler exclude) {
-        for (ClientHandler c : clients) {
-            if (c != exclude) {
+    private void startNio() {
+        ChatLog.info("MyChatAppServer starting on port " + LISTEN_PORT + " (nio engine, " + IO_THREADS + " I/O threads)");
+        try {
+            nio = new ChatNioEngine(this, LISTEN_PORT, IO_THREADS);
+            nio.run();
+        } catch (IOException e) {
+            ChatLog.error("Server error: " + e.getMessage(), e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    long newSessionId() {
+        return nextSessionId.getAndIncrement();
+    }
+
+    void addClient(ChatSession c) {
+        clients.add(c);
+        if (HEARTBEAT_MILLIS > 0) timers.schedule(() -> checkIdle(c), HEARTBEAT_MILLIS);
+    }
+
+    // Runs on the timer thread every HEARTBEAT_MILLIS per connection. Reads only stamp the
+    // session, so a busy client costs nothing here beyond this one re-armed entry.
+    private void checkIdle(ChatSession c) {
+        if (!clients.contains(c)) return;
+        long idleMillis = (System.nanoTime() - c.lastReadNanos()) / 1_000_000;
+        long limit = c.answersHeartbeats() ? IDLE_TIMEOUT_MILLIS : LEGACY_IDLE_TIMEOUT_MILLIS;
+        if (limit > 0 && idleMillis >= limit) {
+            metrics.recordIdleDisconnect();
+            ChatLog.info("Disconnecting " + c.getClientName() + ": nothing received for " + idleMillis + " ms");
+            c.closeSilently();
+            forget(c);
+            return;
+        }
+        if (idleMillis >= HEARTBEAT_MILLIS && c.answersHeartbeats()) {
+            try {
+                c.send(ChatFrame.of(ChatProtocol.HEARTBEAT, 0, ""));
+            } catch (IOException e) {
+                dropClient(c, e);
+                return;
+            }
+        }
+        timers.schedule(() -> checkIdle(c), HEARTBEAT_MILLIS);
+    }
+
+    void onJoin(ChatSession c) {
+        enterRoom(c, DEFAULT_ROOM);
+    }
+
+    RateLimiter newRateLimiter() {
+        return new RateLimiter(RATE_MESSAGES, RATE_BURST, RATE_BYTES, RATE_BURST_BYTES, RATE_GRACE_MILLIS);
+    }
+
+    // Called by a reader for every message before handling it, with the bytes it took on the
+    // wire. Returns how long to stop reading from the client afterwards, 0 for not at all, or
+    // RateLimiter.DISCONNECT.
+    long checkRate(ChatSession c, RateLimiter limiter, int wireBytes) {
+        long pause = limiter.admit(wireBytes, System.nanoTime());
+        if (pause == RateLimiter.DISCONNECT) {
+            metrics.recordRateLimitDisconnect();
+            ChatLog.warn("Disconnecting " + c.getClientName() + ": over its rate limit for more than " + RATE_GRACE_MILLIS + " ms");
+        } else if (pause > 0) {
+            metrics.recordThrottle();
+        }
+        return pause;
+    }
+
+    // Legacy clients send bare strings: "exit" and "/command args" are control messages
+    boolean onMessage(ChatSession c, String msg) {
+        String command = ChatProtocol.command(msg);
+        if (command != null) return onFrame(c, ChatProtocol.CONTROL, command);
+        return onFrame(c, ChatProtocol.CHAT, msg);
+    }
+
+    // Returns false once the client asked to leave
+    boolean onFrame(ChatSession c, byte type, String payload) {
+        long start = System.nanoTime();
+        try {
+            return dispatch(c, type, payload);
+        } finally {
+            metrics.recordRead(System.nanoTime() - start);
+        }
+    }
+
+    private boolean dispatch(ChatSession c, byte type, String payload) {
+        switch (type) {
+            case ChatProtocol.CHAT:
+                if (ChatLog.DEBUG) ChatLog.debug("Received from " + c.getClientName() + " in " + c.getRoom() + ": " + payload);
+                ChatFrame frame = ChatFrame.of(ChatProtocol.CHAT, c.getId(), c.getClientName() + ": " + payload);
+                if (federation != null) federation.forward(c.getRoom(), frame);
+                publish(c.getRoom(), frame, c);
+                return true;
+            case ChatProtocol.CONTROL:
+                if (ChatLog.DEBUG) ChatLog.debug("Received from " + c.getClientName() + ": " + payload);
+                return onControl(c, payload.trim());
+            case ChatProtocol.ACK:
+            case ChatProtocol.HEARTBEAT:
+                // receiving it already counted as activity
+                return true;
+            default:
+                ChatLog.warn("Ignoring frame of type " + type + " from " + c.getClientName());
+                return true;
+        }
+    }
+
+    // A chat message relayed by another node; it is published here and never forwarded again
+    void deliverFromPeer(String room, ChatFrame frame) {
+        publish(room, frame, null);
+    }
+
+    // Records a chat message and broadcasts it to the room; consumes the caller's reference
+    private void publish(String room, ChatFrame frame, ChatSession exclude) {
+        if (journal != null) journal.append(room, frame.retain());
+        remember(room, frame.retain());
+        // Broadcast message to the rest of the room
+        broadcast(room, frame, exclude);
+    }
+
+    // Commands: "exit", "join <room>", "leave" (back to the default room), "rooms"
+    private boolean onControl(ChatSession c, String command) {
+        String[] parts = command.split("\\s+", 2);
+        String verb = parts[0].toLowerCase(Locale.ROOT);
+        switch (verb) {
+            case "exit":
+                // notify and close
+                leaveRoom(c, "left the chat.");
+                return false;
+            case "join":
+                if (parts.length < 2 || parts[1].isEmpty() || parts[1].length() > MAX_ROOM_NAME) {
+                    reply(c, "Usage: join <room>, at most " + MAX_ROOM_NAME + " characters");
+                } else if (!parts[1].equals(c.getRoom())) {
+                    leaveRoom(c, "left the room.");
+                    enterRoom(c, parts[1]);
+                }
+                return true;
+            case "leave":
+                if (!DEFAULT_ROOM.equals(c.getRoom())) {
+                    leaveRoom(c, "left the room.");
+                    enterRoom(c, DEFAULT_ROOM);
+                }
+                return true;
+            case "rooms":
+                reply(c, "Rooms: " + String.join(", ", rooms.names()));
+                return true;
+            default:
+                reply(c, "Unknown command: " + verb);
+                return true;
+        }
+    }
+
+    // Catch-up is queued before the client becomes a member, so it always precedes live
+    // traffic; a message racing the join may be missed but is never duplicated or reordered.
+    private void enterRoom(ChatSession c, String room) {
+        c.setRoom(room);
+        reply(c, "You are in room " + room + ".");
+        HistoryRing ring = history.get(room);
+        if (ring != null) {
+            List<ChatFrame> frames = ring.snapshot();
+            for (int i = 0; i < frames.size(); i++) {
                 try {
-                    c.send(message);
+                    c.send(frames.get(i));
                 } catch (IOException e) {
-                    System.err.println("Failed to send to " + c.getClientName() + ": " + e.getMessage());
-                    c.closeSilently();
-                    clients.remove(c);
+                    // the snapshot's references to frames not sent yet are still ours
+                    for (int j = i + 1; j < frames.size(); j++) frames.get(j).release();
+                    dropClient(c, e);
+                    return;
+                }
+            }
+        }
+        join(room, c);
+        // Notify the room that this client joined
+        broadcast(room, ChatFrame.of(ChatProtocol.PRESENCE, c.getId(), "[" + c.getClientName() + "] joined the chat."), c);
+    }
+
+    private void join(String room, ChatSession c) {
+        rooms.join(room, c);
+        if (nio != null) nio.join(room, c);
+    }
+
+    private void leave(String room, ChatSession c) {
+        rooms.leave(room, c);
+        if (nio != null) nio.leave(room, c);
+    }
+
+    // Consumes the caller's reference
+    private void remember(String room, ChatFrame frame) {
+        if (HISTORY_SIZE <= 0) {
+            frame.release();
+            return;
+        }
+        history.computeIfAbsent(room, r -> new HistoryRing(HISTORY_SIZE)).add(frame);
+    }
+
+    // Runs on the timer thread, off the publish path: drops the history of the least recently
+    // used rooms once there are more than HISTORY_ROOMS
+    private void sweepHistory() {
+        int excess = history.size() - HISTORY_ROOMS;
+        if (excess > 0) {
+            List<Map.Entry<String, HistoryRing>> entries = new ArrayList<>(history.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().lastUsedNanos()));
+            for (int i = 0; i < excess && i < entries.size(); i++) {
+                Map.Entry<String, HistoryRing> e = entries.get(i);
+                if (history.remove(e.getKey(), e.getValue())) e.getValue().close();
+            }
+        }
+        timers.schedule(this::sweepHistory, HISTORY_SWEEP_MILLIS);
+    }
+
+    private void leaveRoom(ChatSession c, String notice) {
+        String room = c.getRoom();
+        if (room == null) return;
+        leave(room, c);
+        c.setRoom(null);
+        broadcast(room, ChatFrame.of(ChatProtocol.PRESENCE, c.getId(), "[" + c.getClientName() + "] " + notice), c);
+    }
+
+    private void reply(ChatSession c, String text) {
+        try {
+            c.send(ChatFrame.of(ChatProtocol.CONTROL, 0, text));
+        } catch (IOException e) {
+            dropClient(c, e);
+        }
+    }
+
+    // Consumes the caller's reference; every member of the room queues its own reference to
+    // the same frame, which is encoded at most once per wire format. Costs O(room size).
+    void broadcast(String room, ChatFrame frame, ChatSession exclude) {
+        if (nio != null) {
+            // each shard fans out to its own members and records its share in the metrics
+            nio.broadcast(room, frame, exclude);
+            return;
+        }
+        long start = System.nanoTime();
+        int recipients = 0;
+        try {
+            for (ChatSession c : rooms.members(room)) {
+                if (c != exclude) {
+                    try {
+                        c.send(frame.retain());
+                        recipients++;
+                    } catch (IOException e) {
+                        dropClient(c, e);
+                    }
                 }
             }
+        } finally {
+            frame.release();
+            metrics.recordFanout(recipients, System.nanoTime() - start);
         }
     }
 
-    private void removeClient(ClientHandler c) {
+    // Sampled by the metrics thread about once a second
+    private long queuedFrames() {
+        long n = 0;
+        for (ChatSession c : clients) n += c.queuedFrames();
+        return n;
+    }
+
+    private void dropClient(ChatSession c, IOException e) {
+        metrics.recordFailedSend();
+        ChatLog.warn("Failed to send to " + c.getClientName() + ": " + e.getMessage());
+        c.closeSilently();
+        forget(c);
+    }
+
+    void removeClient(ChatSession c) {
+        forget(c);
+        ChatLog.info("Removed client: " + c.getClientName());
+    }
+
+    private void forget(ChatSession c) {
         clients.remove(c);
-        System.out.println("Removed client: " + c.getClientName());
+        String room = c.getRoom();
+        if (room != null) leave(room, c);
     }
 
     private void shutdown() {
-        System.out.println("Shutting down server...");
-        for (ClientHandler c : clients) c.closeSilently();
+        ChatLog.info("Shutting down server...");
+        for (ChatSession c : clients) c.closeSilently();
         executor.shutdownNow();
+        timers.stop();
+        if (federation != null) federation.stop();
+        if (journal != null) journal.close();
+        metrics.stop();
     }
 
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements Runnable, ChatSession {
         private final Socket socket;
         private DataInputStream dis;
         private DataOutputStream dout;
         private final String clientName;
+        private final long id = newSessionId();
+        private volatile String room;
+        // Set by the reader when the client sends ChatProtocol.HELLO; read by the idle check
+        private volatile boolean v2;
+        private volatile long lastRead = System.nanoTime();
+        private final RateLimiter limiter = newRateLimiter();
+        // Broadcasters only enqueue; this client's own writer does the socket I/O, so a stalled
+        // receiver backs up its own queue instead of the sender's fan-out loop
+        private final BlockingQueue<ChatFrame> outbound = new ArrayBlockingQueue<>(OUTBOUND_QUEUE);
+        private Future<?> writer;
+        private volatile boolean closed;
+        private final long acceptedAt = System.nanoTime();
 
         ClientHandler(Socket socket) {
             this.socket = socket;
             this.clientName = socket.getRemoteSocketAddress().toString();
         }
 
-        String getClientName() {
+        @Override
+        public String getClientName() {
             return clientName;
         }
 
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getRoom() {
+            return room;
+        }
+
+        @Override
+        public void setRoom(String room) {
+            this.room = room;
+        }
+
         @Override
         public void run() {
+            metrics.recordAccept(System.nanoTime() - acceptedAt);
             try {
                 dis = new DataInputStream(socket.getInputStream());
-                dout = new DataOutputStream(socket.getOutputStream());
+                dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                writer = executor.submit(this::writeLoop);
 
-                // Notify others that this client joined
-                broadcast("[" + clientName + "] joined the chat.", this);
+                onJoin(this);
 
                 while (true) {
-                    String msg;
+                    ChatProtocol.Message frame = null;
+                    String msg = null;
                     try {
-                        msg = dis.readUTF();
+                        if (v2) frame = ChatProtocol.read(dis);
+                        else msg = dis.readUTF();
+                        lastRead = System.nanoTime();
                     } catch (IOException e) {
-                        System.out.println("Connection lost from " + clientName + ": " + e.getMessage());
+                        ChatLog.info("Connection lost from " + clientName + ": " + e.getMessage());
                         break;
                     }
-                    System.out.println("Received from " + clientName + ": " + msg);
-                    if ("exit".equalsIgnoreCase(msg.trim())) {
-                        // notify and close
-                        broadcast("[" + clientName + "] left the chat.", this);
+                    long pause = checkRate(this, limiter, frame != null ? frame.wireLength : ChatProtocol.utfWireLength(msg));
+                    if (pause == RateLimiter.DISCONNECT) break;
+                    if (frame != null) {
+                        if (!onFrame(this, frame.type, frame.payload)) break;
+                    } else if (ChatProtocol.isHello(msg)) {
+                        v2 = true;
+                        send(ChatFrame.upgradeAck(ChatProtocol.COMPRESS && ChatProtocol.HELLO_DEFLATE.equals(msg)));
+                    } else if (!onMessage(this, msg)) {
                         break;
                     }
-                    // Broadcast message to others
-                    broadcast("" + clientName + ": " + msg, this);
+                    // nothing more is read meanwhile, so the client's sends back up in TCP
+                    if (pause > 0) LockSupport.parkNanos(pause);
                 }
             } catch (IOException e) {
-                System.err.println("I/O error with client " + clientName + ": " + e.getMessage());
+                ChatLog.warn("I/O error with client " + clientName + ": " + e.getMessage());
             } finally {
                 closeSilently();
                 removeClient(this);
             }
         }
 
-        void send(String message) throws IOException {
-            if (dout != null) {
-                dout.writeUTF(message);
-                dout.flush();
-            } else {
+        @Override
+        public void send(ChatFrame frame) throws IOException {
+            if (closed) {
+                frame.release();
                 throw new IOException("Output stream closed");
             }
+            while (!outbound.offer(frame)) {
+                if (OVERFLOW == OverflowPolicy.DISCONNECT) {
+                    frame.release();
+                    throw new IOException("Slow consumer, " + OUTBOUND_QUEUE + " frames queued");
+                }
+                ChatFrame oldest = outbound.poll();
+                if (oldest != null) oldest.release();
+            }
+        }
+
+        // Writes everything queued so far and flushes once per batch rather than once per frame
+        private void writeLoop() {
+            List<ChatFrame> batch = new ArrayList<>();
+            ChatProtocol.Wire wire = ChatProtocol.Wire.LEGACY;
+            try {
+                while (!closed) {
+                    batch.add(outbound.take());
+                    outbound.drainTo(batch, MAX_WRITE_BATCH - 1);
+                    long start = System.nanoTime();
+                    for (ChatFrame f : batch) {
+                        f.writeTo(dout, wire);
+                        if (f.upgradesProtocol()) wire = f.upgradeWire();
+                    }
+                    dout.flush();
+                    metrics.recordSend(System.nanoTime() - start);
+                    releaseAll(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (!closed) {
+                    metrics.recordFailedSend();
+                    ChatLog.warn("Failed to send to " + clientName + ": " + e.getMessage());
+                    closeSilently();
+                }
+            } finally {
+                releaseAll(batch);
+            }
+        }
+
+        @Override
+        public int queuedFrames() {
+            return outbound.size();
         }
 
-        void closeSilently() {
+        @Override
+        public long lastReadNanos() {
+            return lastRead;
+        }
+
+        @Override
+        public boolean answersHeartbeats() {
+            return v2;
+        }
+
+        private void releaseAll(List<ChatFrame> frames) {
+            for (ChatFrame f : frames) f.release();
+            frames.clear();
+        }
+
+        @Override
+        public void closeSilently() {
+            closed = true;
+            if (writer != null) writer.cancel(true);
+            ChatFrame f;
+            while ((f = outbound.poll()) != null) f.release();
             try {
                 if (dout != null) dout.close();
             } catch (IOException ignored) {}
@@ -9,18 +9,23 @@ import java.net.Socket;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class MyChatAppServerGUI {
     private JFrame frame;
-    private JTextArea logArea;
+    private LogView logView;
     private JList<String> clientList;
     private DefaultListModel<String> clientListModel;
     private JButton startButton;
     private JButton stopButton;
     private JButton broadcastButton;
     private JTextField portField;
+    private JCheckBox virtualThreadsBox;
     private JTextField broadcastField;
+    private JLabel[] statValues;
+    // Lines kept in the log view; older ones scroll out of memory
+    private static final int LOG_LINES = Integer.getInteger("chat.gui.logLines", 5000);
+    private Timer statsTimer;
 
     private ServerController controller;
 
@@ -33,11 +38,7 @@ public class MyChatAppServerGUI {
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         frame.setLayout(new BorderLayout(8, 8));
 
-        logArea = new JTextArea(20, 50);
-        logArea.setEditable(false);
-        JScrollPane logScroll = new JScrollPane(logArea,
-                JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
-                JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        logView = new LogView(20, 50, LOG_LINES);
 
         clientListModel = new DefaultListModel<>();
         clientList = new JList<>(clientListModel);
@@ -47,14 +48,18 @@ public class MyChatAppServerGUI {
         JPanel right = new JPanel(new BorderLayout(5,5));
         right.add(new JLabel("Connected Clients:"), BorderLayout.NORTH);
         right.add(clientsScroll, BorderLayout.CENTER);
+        right.add(buildStatsPanel(), BorderLayout.SOUTH);
 
         JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 6));
         portField = new JTextField("1333", 6);
         startButton = new JButton("Start");
         stopButton = new JButton("Stop");
         stopButton.setEnabled(false);
+        virtualThreadsBox = new JCheckBox("Virtual threads", "virtual".equalsIgnoreCase(ChatExecutors.MODE));
+        virtualThreadsBox.setEnabled(ChatExecutors.virtualThreadsAvailable());
         top.add(new JLabel("Port:"));
         top.add(portField);
+        top.add(virtualThreadsBox);
         top.add(startButton);
         top.add(stopButton);
 
@@ -66,7 +71,7 @@ public class MyChatAppServerGUI {
         bottom.add(broadcastButton, BorderLayout.EAST);
 
         frame.add(top, BorderLayout.NORTH);
-        frame.add(logScroll, BorderLayout.CENTER);
+        frame.add(logView, BorderLayout.CENTER);
         frame.add(right, BorderLayout.EAST);
         frame.add(bottom, BorderLayout.SOUTH);
 
@@ -75,32 +80,72 @@ public class MyChatAppServerGUI {
         stopButton.addActionListener(e -> stopServer());
         broadcastButton.addActionListener(e -> broadcastFromServer());
 
+        // Stats are sampled once a second, never pushed per message
+        statsTimer = new Timer(1000, e -> refreshStats());
+
         frame.pack();
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
     }
 
+    private static final String[] STAT_NAMES = {
+            "Connections", "Accepted", "Messages in/s", "Messages out/s",
+            "Fan-out p50/p99 (\u00b5s)", "Read p99 (\u00b5s)", "Send p99 (\u00b5s)", "Waiting sends", "Failed sends"};
+
+    private JPanel buildStatsPanel() {
+        JPanel stats = new JPanel(new GridLayout(0, 2, 6, 2));
+        stats.setBorder(BorderFactory.createTitledBorder("Stats"));
+        statValues = new JLabel[STAT_NAMES.length];
+        for (int i = 0; i < STAT_NAMES.length; i++) {
+            statValues[i] = new JLabel("-");
+            stats.add(new JLabel(STAT_NAMES[i] + ":"));
+            stats.add(statValues[i]);
+        }
+        return stats;
+    }
+
+    private void refreshStats() {
+        if (controller == null) return;
+        ChatMetrics m = controller.metrics;
+        String[] values = {
+                String.valueOf(m.getActiveConnections()),
+                String.valueOf(m.getAcceptedConnections()),
+                String.format("%.0f", m.getMessagesInPerSecond()),
+                String.format("%.0f", m.getMessagesOutPerSecond()),
+                String.format("%.0f / %.0f", m.getFanoutP50Micros(), m.getFanoutP99Micros()),
+                String.format("%.0f", m.getReadP99Micros()),
+                String.format("%.0f", m.getSendP99Micros()),
+                String.valueOf(m.getQueuedFrames()),
+                String.valueOf(m.getFailedSends())};
+        for (int i = 0; i < values.length; i++) statValues[i].setText(values[i]);
+    }
+
     private void startServer() {
         int port;
         try {
             port = Integer.parseInt(portField.getText().trim());
         } catch (NumberFormatException ex) {
-            appendLog("Invalid port number.");
+            appendLog(LogView.Level.WARN, "Invalid port number.");
             return;
         }
-        controller = new ServerController(port);
+        String threads = virtualThreadsBox.isSelected() ? "virtual" : "platform";
+        controller = new ServerController(port, threads);
         controller.start();
+        statsTimer.start();
         startButton.setEnabled(false);
+        virtualThreadsBox.setEnabled(false);
         stopButton.setEnabled(true);
         broadcastButton.setEnabled(true);
-        appendLog("Server started on port " + port);
+        appendLog("Server started on port " + port + " (" + threads + " threads)");
     }
 
     private void stopServer() {
         if (controller != null) {
             controller.shutdown();
             controller = null;
+            statsTimer.stop();
             startButton.setEnabled(true);
+            virtualThreadsBox.setEnabled(ChatExecutors.virtualThreadsAvailable());
             stopButton.setEnabled(false);
             broadcastButton.setEnabled(false);
             appendLog("Server stopped.");
@@ -118,11 +163,13 @@ public class MyChatAppServerGUI {
         }
     }
 
+    // Callable from any thread; the view batches lines onto the EDT itself
     private void appendLog(String line) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append(line + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
+        logView.info(line);
+    }
+
+    private void appendLog(LogView.Level level, String line) {
+        logView.log(level, line);
     }
 
     // ServerController: runs server logic on background threads and updates GUI via callbacks
@@ -130,15 +177,19 @@ public class MyChatAppServerGUI {
         private final int port;
         private ServerSocket serverSocket;
         private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
-        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final ExecutorService executor;
         private volatile boolean running = false;
+        // "Waiting sends" here is handlers blocked on another thread's write to the same client
+        final ChatMetrics metrics = new ChatMetrics(() -> clients.size(), this::waitingSends);
 
-        ServerController(int port) {
+        ServerController(int port, String threads) {
             this.port = port;
+            this.executor = ChatExecutors.newHandlerExecutor(threads);
         }
 
         void start() {
             running = true;
+            metrics.start("gui-" + port);
             executor.submit(() -> {
                 try (ServerSocket ss = new ServerSocket(port)) {
                     serverSocket = ss;
@@ -152,25 +203,36 @@ public class MyChatAppServerGUI {
                             SwingUtilities.invokeLater(() -> clientListModel.addElement(ch.name));
                             appendLog("Accepted: " + ch.name);
                         } catch (IOException e) {
-                            if (running) appendLog("Accept error: " + e.getMessage());
+                            if (running) appendLog(LogView.Level.ERROR, "Accept error: " + e.getMessage());
                         }
                     }
                 } catch (IOException e) {
-                    appendLog("Server socket error: " + e.getMessage());
+                    appendLog(LogView.Level.ERROR, "Server socket error: " + e.getMessage());
                 }
             });
         }
 
         void broadcast(String message) {
+            long start = System.nanoTime();
+            int recipients = 0;
             for (ClientHandler c : clients) {
                 try {
                     c.send(message);
+                    recipients++;
                 } catch (IOException e) {
-                    appendLog("Failed to send to " + c.name + ": " + e.getMessage());
+                    metrics.recordFailedSend();
+                    appendLog(LogView.Level.WARN, "Failed to send to " + c.name + ": " + e.getMessage());
                     c.closeSilently();
                     removeClient(c);
                 }
             }
+            metrics.recordFanout(recipients, System.nanoTime() - start);
+        }
+
+        private long waitingSends() {
+            long n = 0;
+            for (ClientHandler c : clients) n += c.sendLock.getQueueLength();
+            return n;
         }
 
         void removeClient(ClientHandler c) {
@@ -187,6 +249,7 @@ public class MyChatAppServerGUI {
             for (ClientHandler c : clients) c.closeSilently();
             clients.clear();
             executor.shutdownNow();
+            metrics.stop();
         }
 
         private class ClientHandler implements Runnable {
@@ -194,6 +257,9 @@ public class MyChatAppServerGUI {
             final String name;
             DataInputStream dis;
             DataOutputStream dout;
+            // not synchronized, so a blocked write never pins a virtual thread's carrier
+            final ReentrantLock sendLock = new ReentrantLock();
+            final long acceptedAt = System.nanoTime();
 
             ClientHandler(Socket socket) {
                 this.socket = socket;
@@ -202,12 +268,13 @@ public class MyChatAppServerGUI {
 
             @Override
             public void run() {
+                metrics.recordAccept(System.nanoTime() - acceptedAt);
                 try {
                     dis = new DataInputStream(socket.getInputStream());
                     dout = new DataOutputStream(socket.getOutputStream());
                     // notify others
                     broadcast("[" + name + "] joined the chat.");
-                    appendLog(name + " handler started.");
+                    appendLog(LogView.Level.DEBUG, name + " handler started.");
                     while (running && !socket.isClosed()) {
                         String msg;
                         try {
@@ -216,15 +283,19 @@ public class MyChatAppServerGUI {
                             appendLog("Client disconnected: " + name);
                             break;
                         }
+                        // this server only speaks writeUTF; the client falls back once its handshake times out
+                        if (ChatProtocol.isHello(msg)) continue;
+                        long received = System.nanoTime();
                         appendLog(name + ": " + msg);
                         if ("exit".equalsIgnoreCase(msg.trim())) {
                             broadcast("[" + name + "] left the chat.");
                             break;
                         }
                         broadcast(name + ": " + msg);
+                        metrics.recordRead(System.nanoTime() - received);
                     }
                 } catch (IOException e) {
-                    appendLog("I/O error with client " + name + ": " + e.getMessage());
+                    appendLog(LogView.Level.WARN, "I/O error with client " + name + ": " + e.getMessage());
                 } finally {
                     closeSilently();
                     removeClient(this);
@@ -232,11 +303,18 @@ public class MyChatAppServerGUI {
             }
 
             void send(String message) throws IOException {
-                if (dout != null) {
-                    dout.writeUTF(message);
-                    dout.flush();
-                } else {
-                    throw new IOException("Output closed");
+                sendLock.lock();
+                try {
+                    if (dout != null) {
+                        long start = System.nanoTime();
+                        dout.writeUTF(message);
+                        dout.flush();
+                        metrics.recordSend(System.nanoTime() - start);
+                    } else {
+                        throw new IOException("Output closed");
+                    }
+                } finally {
+                    sendLock.unlock();
                 }
             }
 
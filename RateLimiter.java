@@ -0,0 +1,62 @@
+/**
+ * Limits what one connection may send: two token buckets, one counting messages and one
+ * counting the bytes they took on the wire, refilled lazily from the caller's clock on each check.
+ * A message that was already read is always admitted, but it may leave a bucket in debt;
+ * the reader then stops reading until the debt is paid back, so TCP flow control slows the
+ * client down instead of the server queueing its flood. A client that has kept needing
+ * pauses for longer than the grace period, never going a second without one, is told to go.
+ *
+ * Plain fields only, so a check never allocates. Each instance belongs to one connection and
+ * is only touched by the thread reading it. A rate of 0 leaves that bucket unlimited.
+ */
+public final class RateLimiter {
+    static final long DISCONNECT = -1;
+    // A second without a pause ends a throttled stretch
+    private static final long FORGIVE_NANOS = 1_000_000_000L;
+
+    private final double messagesPerNano;
+    private final double messageBurst;
+    private final double bytesPerNano;
+    private final double byteBurst;
+    private final long graceNanos;
+    private double messages;
+    private double bytes;
+    private long last;
+    // Start of the current throttled stretch, or -1
+    private long throttledSince = -1;
+    private long lastPause;
+
+    RateLimiter(double messagesPerSecond, double messageBurst, double bytesPerSecond, double byteBurst, long graceMillis) {
+        this.messagesPerNano = messagesPerSecond / 1e9;
+        this.messageBurst = messageBurst;
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.byteBurst = byteBurst;
+        this.graceNanos = graceMillis * 1_000_000;
+        this.messages = messageBurst;
+        this.bytes = byteBurst;
+        this.last = System.nanoTime();
+    }
+
+    // Nanoseconds to stop reading once this message is handled, 0 to go on, or DISCONNECT
+    long admit(int wireBytes, long now) {
+        long elapsed = Math.max(0, now - last);
+        last = now;
+        double waitNanos = 0;
+        if (messagesPerNano > 0) {
+            messages = Math.min(messageBurst, messages + elapsed * messagesPerNano) - 1;
+            if (messages < 0) waitNanos = -messages / messagesPerNano;
+        }
+        if (bytesPerNano > 0) {
+            bytes = Math.min(byteBurst, bytes + elapsed * bytesPerNano) - wireBytes;
+            if (bytes < 0) waitNanos = Math.max(waitNanos, -bytes / bytesPerNano);
+        }
+        if (waitNanos == 0) {
+            if (throttledSince >= 0 && now - lastPause > FORGIVE_NANOS) throttledSince = -1;
+            return 0;
+        }
+        if (throttledSince < 0) throttledSince = now;
+        lastPause = now;
+        if (graceNanos > 0 && now - throttledSince > graceNanos) return DISCONNECT;
+        return (long) Math.ceil(waitNanos);
+    }
+}
@@ -3,42 +3,56 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
 
 public class SimpleServer {
     public static final int PORT = 1333;
 
     public static void main(String[] args) {
-        System.out.println("SimpleServer starting on port " + PORT);
+        ChatLog.info("SimpleServer starting on port " + PORT + " (" + ChatExecutors.MODE + " threads)");
+        ExecutorService executor = ChatExecutors.newHandlerExecutor();
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Waiting for client...");
-            try (Socket client = serverSocket.accept();
-                 DataInputStream dis = new DataInputStream(client.getInputStream());
-                 DataOutputStream dout = new DataOutputStream(client.getOutputStream())) {
+            while (true) {
+                ChatLog.debug("Waiting for client...");
+                Socket client = serverSocket.accept();
+                executor.submit(() -> serve(client));
+            }
+        } catch (IOException e) {
+            ChatLog.error("Server error: " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void serve(Socket socket) {
+        try (Socket client = socket;
+             DataInputStream dis = new DataInputStream(client.getInputStream());
+             DataOutputStream dout = new DataOutputStream(client.getOutputStream())) {
 
-                System.out.println("Client connected: " + client.getRemoteSocketAddress());
-                while (true) {
-                    String msg;
-                    try {
-                        msg = dis.readUTF();
-                    } catch (IOException e) {
-                        System.out.println("Client disconnected: " + e.getMessage());
-                        break;
-                    }
-                    System.out.println("Client: " + msg);
-                    if ("exit".equalsIgnoreCase(msg.trim())) {
-                        dout.writeUTF("exit");
-                        dout.flush();
-                        System.out.println("Received exit from client. Closing connection.");
-                        break;
-                    }
-                    // Echo back
-                    dout.writeUTF("Echo: " + msg);
+            ChatLog.info("Client connected: " + client.getRemoteSocketAddress());
+            while (true) {
+                String msg;
+                try {
+                    msg = dis.readUTF();
+                } catch (IOException e) {
+                    ChatLog.info("Client disconnected: " + e.getMessage());
+                    break;
+                }
+                // echo clients only speak writeUTF; let a chat client's handshake time out
+                if (ChatProtocol.isHello(msg)) continue;
+                if (ChatLog.DEBUG) ChatLog.debug("Client: " + msg);
+                if ("exit".equalsIgnoreCase(msg.trim())) {
+                    dout.writeUTF("exit");
                     dout.flush();
+                    ChatLog.info("Received exit from client. Closing connection.");
+                    break;
                 }
+                // Echo back
+                dout.writeUTF("Echo: " + msg);
+                dout.flush();
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            ChatLog.warn("I/O error with client: " + e.getMessage());
         }
     }
 }
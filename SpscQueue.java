@@ -0,0 +1,51 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer queue. Exactly one thread may offer and exactly
+ * one (other) thread may poll; in exchange neither side ever takes a lock or runs a CAS,
+ * and each only reads the other's index when its cached copy says the queue looks full
+ * or empty.
+ */
+public final class SpscQueue<E> {
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // Producer's last look at head, consumer's last look at tail
+    private long headCache;
+    private long tailCache;
+
+    // Capacity is rounded up to a power of two
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    // Producer thread only; false when full
+    boolean offer(E e) {
+        long t = tail.get();
+        if (t - headCache >= buffer.length) {
+            headCache = head.get();
+            if (t - headCache >= buffer.length) return false;
+        }
+        buffer[(int) (t & mask)] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer thread only; null when empty
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) return null;
+        }
+        int slot = (int) (h & mask);
+        E e = (E) buffer[slot];
+        buffer[slot] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+}
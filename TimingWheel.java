@@ -0,0 +1,117 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: one thread and a ring of buckets, one bucket per tick. A timeout
+ * lands in the bucket its deadline hashes to, with the number of full turns still to wait,
+ * so scheduling and cancelling are O(1) however many are pending. The price is precision:
+ * a task runs up to one tick late. That suits idle checks on 100k connections, where a
+ * ScheduledExecutorService would keep a 100k-entry heap sorted for no benefit.
+ *
+ * Tasks run on the wheel thread and must be short. Any thread may schedule; new timeouts
+ * are handed over through a queue and placed at the next tick.
+ */
+public final class TimingWheel {
+    private final String name;
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private Thread thread;
+    private long startNanos;
+    // Ticks since start; wheel thread only
+    private long tick;
+
+    final class Timeout {
+        final Runnable task;
+        final long deadlineNanos;
+        // Full turns of the wheel left before it is due; wheel thread only
+        long rounds;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        // The bucket entry is dropped when the wheel next passes it
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    // Wheel size is rounded up to a power of two
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(String name, long tickMillis, int wheelSize) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1) << 1);
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) buckets[i] = new ArrayDeque<>();
+        this.mask = size - 1;
+    }
+
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        startNanos = System.nanoTime();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout t = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        incoming.add(t);
+        return t;
+    }
+
+    private void run() {
+        while (running) {
+            long next = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while (running && (wait = next - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            if (!running) break;
+            place();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void place() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            if (t.cancelled) continue;
+            // a deadline that already passed still goes into the current bucket
+            long due = Math.max(tick, (t.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            t.rounds = (due - tick) / buckets.length;
+            buckets[(int) (due & mask)].add(t);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (int n = bucket.size(); n > 0; n--) {
+            Timeout t = bucket.poll();
+            if (t.cancelled) continue;
+            if (t.rounds > 0) {
+                t.rounds--;
+                bucket.add(t);
+                continue;
+            }
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                ChatLog.error("Timer task failed on " + name, e);
+            }
+        }
+    }
+}
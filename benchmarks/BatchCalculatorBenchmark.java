@@ -0,0 +1,146 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Tuples per second through the calculator: the per-request path (switch on the operator
+ * String and format the result, as Assignment_2_server does for every text request), the
+ * same switch without formatting, and BatchCalculator on one thread and on the fork-join
+ * pool. Operators come mixed at random, in runs of 1000, and all the same. A last pair
+ * sends the tuples to an in-process server, as pipelined text requests and as binary batches.
+ *
+ * javac -d out -sourcepath .:benchmarks benchmarks/BatchCalculatorBenchmark.java
+ * java -Dchat.log.level=warn -cp out BatchCalculatorBenchmark [tuples]
+ */
+public class BatchCalculatorBenchmark {
+    private static final String[] OPERATORS = {"+", "-", "*", "/"};
+    private static final int WIRE_BATCH = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        Random rnd = new Random(1);
+        int[] number1 = new int[n];
+        int[] number2 = new int[n];
+        for (int i = 0; i < n; i++) {
+            number1[i] = rnd.nextInt(2_000_001) - 1_000_000;
+            number2[i] = rnd.nextInt(2_001) - 1_000;
+        }
+        byte[] mixed = new byte[n];
+        byte[] runs = new byte[n];
+        byte[] uniform = new byte[n];
+        for (int i = 0; i < n; i++) {
+            mixed[i] = (byte) rnd.nextInt(4);
+            runs[i] = (byte) ((i / 1000) % 4);
+            uniform[i] = BatchCalculator.MULTIPLY;
+        }
+        double[] results = new double[n];
+        Bench.warmupIterations = 2;
+        Bench.measureIterations = 3;
+
+        System.out.printf("%,d tuples, %d cores%n", n, Runtime.getRuntime().availableProcessors());
+        for (Object[] shape : new Object[][] {{"mixed", mixed}, {"runs of 1000", runs}, {"uniform *", uniform}}) {
+            byte[] opcodes = (byte[]) shape[1];
+            String[] operators = new String[n];
+            for (int i = 0; i < n; i++) operators[i] = OPERATORS[opcodes[i]];
+            verify(number1, number2, opcodes, operators, n);
+            report(shape[0] + ", switch + format", n, () -> {
+                for (int i = 0; i < n; i++) Bench.consume(Assignment_2_server.calculate(number1[i], number2[i], operators[i]));
+            });
+            report(shape[0] + ", switch", n, () -> {
+                for (int i = 0; i < n; i++) results[i] = switchPath(number1[i], number2[i], operators[i]);
+                Bench.consume(results);
+            });
+            report(shape[0] + ", batch 1 thread", n, () -> {
+                BatchCalculator.evaluate(number1, number2, opcodes, results, 0, n);
+                Bench.consume(results);
+            });
+            report(shape[0] + ", batch fork-join", n, () -> {
+                BatchCalculator.evaluate(number1, number2, opcodes, results, n);
+                Bench.consume(results);
+            });
+        }
+
+        ServerSocket serverSocket = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        Thread server = new Thread(() -> Assignment_2_server.serve(serverSocket), "calculator");
+        server.setDaemon(true);
+        server.start();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            int textTuples = Math.min(n, 1 << 18);
+            report("socket, pipelined text", textTuples, () -> {
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < textTuples; i++) {
+                            out.writeBytes("#" + i + " " + number1[i] + " " + number2[i] + " " + OPERATORS[mixed[i]] + "\n");
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                writer.start();
+                for (int i = 0; i < textTuples; i++) {
+                    while (in.readByte() != '\n') {
+                        // skip the reply line
+                    }
+                }
+                writer.join();
+            });
+            report("socket, batches of " + WIRE_BATCH, n, () -> {
+                double[] reply = new double[WIRE_BATCH];
+                int[] a = new int[WIRE_BATCH];
+                int[] b = new int[WIRE_BATCH];
+                byte[] ops = new byte[WIRE_BATCH];
+                for (int from = 0; from < n; from += WIRE_BATCH) {
+                    int len = Math.min(WIRE_BATCH, n - from);
+                    System.arraycopy(number1, from, a, 0, len);
+                    System.arraycopy(number2, from, b, 0, len);
+                    System.arraycopy(mixed, from, ops, 0, len);
+                    Assignment_2_server.writeBatch(out, from, a, b, ops, len);
+                    out.flush();
+                    Assignment_2_server.readBatchReply(in, reply);
+                }
+                Bench.consume(reply);
+            });
+        }
+        serverSocket.close();
+    }
+
+    // Both batch paths must agree with the per-request switch, bit for bit
+    private static void verify(int[] number1, int[] number2, byte[] opcodes, String[] operators, int n) {
+        double[] sequential = new double[n];
+        double[] parallel = new double[n];
+        BatchCalculator.evaluate(number1, number2, opcodes, sequential, 0, n);
+        BatchCalculator.evaluate(number1, number2, opcodes, parallel, n);
+        for (int i = 0; i < n; i++) {
+            long expected = Double.doubleToLongBits(switchPath(number1[i], number2[i], operators[i]));
+            if (Double.doubleToLongBits(sequential[i]) != expected || Double.doubleToLongBits(parallel[i]) != expected) {
+                throw new AssertionError("batch result differs at " + i);
+            }
+        }
+    }
+
+    // The operator switch the text protocol runs per request, minus the String formatting
+    private static double switchPath(int number1, int number2, String operator) {
+        switch (operator) {
+            case "+": return number1 + number2;
+            case "-": return number1 - number2;
+            case "*": return number1 * number2;
+            case "/": return number2 != 0 ? (double) number1 / number2 : Double.NaN;
+            default: return Double.NaN;
+        }
+    }
+
+    private static void report(String name, int tuples, Bench.Op op) throws Exception {
+        Bench.Result r = Bench.measure(name, op);
+        System.out.printf("%-36s %,16.0f tuples/s  +- %4.1f%%%n", name, r.opsPerSec * tuples, 100 * r.stddev / r.opsPerSec);
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small JMH-style harness: timed warm-up iterations, then timed measurement iterations,
+ * each running the operation in calibrated batches so the clock is read about once per
+ * millisecond. Results are consumed through sink fields the JIT cannot remove.
+ * Anything the benchmarked code prints is discarded while it runs.
+ */
+public final class Bench {
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final double opsPerSec;
+        final double stddev;
+
+        Result(String name, double opsPerSec, double stddev) {
+            this.name = name;
+            this.opsPerSec = opsPerSec;
+            this.stddev = stddev;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %,16.1f ops/s  +- %5.1f%%", name, opsPerSec, 100 * stddev / opsPerSec);
+        }
+    }
+
+    static int warmupIterations = 3;
+    static int measureIterations = 5;
+    static long iterationMillis = 1000;
+
+    private static long longSink;
+    private static Object objectSink;
+
+    private Bench() {}
+
+    static void consume(long v) {
+        longSink ^= v;
+    }
+
+    static void consume(Object o) {
+        objectSink = o;
+    }
+
+    static Result measure(String name, Op op) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        double[] rates = new double[measureIterations];
+        try {
+            long batch = calibrate(op);
+            for (int i = 0; i < warmupIterations; i++) iteration(op, batch);
+            for (int i = 0; i < measureIterations; i++) rates[i] = iteration(op, batch);
+        } finally {
+            System.setOut(out);
+        }
+        double mean = 0;
+        for (double r : rates) mean += r;
+        mean /= rates.length;
+        double var = 0;
+        for (double r : rates) var += (r - mean) * (r - mean);
+        Result result = new Result(name, mean, Math.sqrt(var / Math.max(1, rates.length - 1)));
+        // keeps the sinks observable
+        if (longSink == 42 && objectSink == null) out.print("");
+        return result;
+    }
+
+    // Number of calls that takes about a millisecond
+    private static long calibrate(Op op) throws Exception {
+        long batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) op.run();
+            if (System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1) || batch >= 1L << 30) return batch;
+            batch *= 2;
+        }
+    }
+
+    private static double iteration(Op op, long batch) throws Exception {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+        long ops = 0;
+        long now;
+        do {
+            for (long i = 0; i < batch; i++) op.run();
+            ops += batch;
+            now = System.nanoTime();
+        } while (now < end);
+        return ops / ((now - start) / 1e9);
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Fan-out cost of one broadcast: the old paths encode the String once per recipient
+ * (writeUTF on the blocking handlers, a fresh ByteBuffer per connection on the NIO engine),
+ * the new ones encode a ChatFrame once and hand the same bytes to every recipient.
+ * Sinks discard their output, so only encode/copy cost and allocation are measured.
+ *
+ * javac -d out -sourcepath . benchmarks/BroadcastEncodeBenchmark.java
+ * java -cp out BroadcastEncodeBenchmark
+ */
+public class BroadcastEncodeBenchmark {
+    private static final String MESSAGE = "/127.0.0.1:53124: has anyone looked at the build failure on the release branch yet? \u2713";
+    private static final int WARMUP_SECONDS = 3;
+    private static final int MEASURE_SECONDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        for (int recipients : new int[] {1_000, 10_000}) {
+            DataOutputStream[] sinks = new DataOutputStream[recipients];
+            for (int i = 0; i < recipients; i++) {
+                sinks[i] = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream()));
+            }
+            run("writeUTF per recipient   ", recipients, () -> {
+                for (DataOutputStream out : sinks) out.writeUTF(MESSAGE);
+            });
+            run("encode-once ChatFrame    ", recipients, () -> {
+                ChatFrame frame = ChatFrame.of(ChatProtocol.CHAT, 1, MESSAGE);
+                for (DataOutputStream out : sinks) {
+                    frame.retain();
+                    frame.writeTo(out, false);
+                    frame.release();
+                }
+                frame.release();
+            });
+            run("nio: buffer per recipient", recipients, () -> {
+                for (int i = 0; i < recipients; i++) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(MESSAGE.length() + 2);
+                    new DataOutputStream(bytes).writeUTF(MESSAGE);
+                    consume(ByteBuffer.wrap(bytes.toByteArray()));
+                }
+            });
+            run("nio: shared frame view   ", recipients, () -> {
+                ChatFrame frame = ChatFrame.of(ChatProtocol.CHAT, 1, MESSAGE);
+                for (int i = 0; i < recipients; i++) {
+                    frame.retain();
+                    consume(frame.buffer(false));
+                    frame.release();
+                }
+                frame.release();
+            });
+        }
+    }
+
+    private static long sink;
+
+    // Stands in for channel.write(): reads the whole buffer so nothing is optimised away
+    private static void consume(ByteBuffer buf) {
+        while (buf.hasRemaining()) sink += buf.get();
+    }
+
+    private interface Broadcast {
+        void run() throws IOException;
+    }
+
+    private static void run(String name, int recipients, Broadcast broadcast) throws IOException {
+        long end = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+        while (System.nanoTime() < end) broadcast.run();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        end = start + MEASURE_SECONDS * 1_000_000_000L;
+        long ops = 0;
+        while (System.nanoTime() < end) {
+            broadcast.run();
+            ops++;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(tid) - allocatedBefore;
+        double deliveriesPerSec = ops * (double) recipients / (elapsed / 1e9);
+        System.out.printf("%s  recipients=%6d  broadcasts/s=%10.1f  deliveries/s=%,14.0f  bytes allocated/broadcast=%10.1f%n",
+                name, recipients, ops / (elapsed / 1e9), deliveriesPerSec, allocated / (double) ops);
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery rate and CPU cost of Assignment_1_Server's three send paths (transferTo, mmap and
+ * copy) over loopback, with one and with several clients downloading the same file at once.
+ * Server CPU is the handler threads' own CPU time, user and system, so the work sendfile does
+ * in the kernel is counted; client CPU is the receiving threads', which read into a direct
+ * buffer and drop the bytes. Each shape runs once to warm up, then is measured.
+ *
+ * javac -d out -sourcepath .:benchmarks benchmarks/BulkTransferBenchmark.java
+ * java -Dchat.log.level=warn -cp out BulkTransferBenchmark [megabytes] [clients]
+ */
+public class BulkTransferBenchmark {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Path file = Files.createTempFile("bulk", ".bin");
+        file.toFile().deleteOnExit();
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+            for (int i = 0; i < megabytes; i++) {
+                for (int j = 0; j < chunk.capacity(); j += 8) chunk.putLong(j, i * 31L + j);
+                chunk.clear();
+                while (chunk.hasRemaining()) out.write(chunk);
+            }
+        }
+
+        System.out.printf("%d MB file, %d cores%n", megabytes, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-12s %8s %10s %16s %16s%n", "mode", "clients", "MB/s", "server CPU s/GB", "client CPU s/GB");
+        for (String mode : new String[] {"transferTo", "mmap", "copy"}) {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+                Thread acceptor = new Thread(() -> Assignment_1_Server.serve(server, file, mode), "bulk-server");
+                acceptor.setDaemon(true);
+                acceptor.start();
+                InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+                for (int n : new int[] {1, clients}) {
+                    run(address, n);
+                    long bytes = Assignment_1_Server.bytesSent();
+                    long serverCpu = Assignment_1_Server.cpuNanos();
+                    long start = System.nanoTime();
+                    long clientCpu = run(address, n);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    // the server counts a transfer once it has written everything, before the client is done
+                    double gb = (Assignment_1_Server.bytesSent() - bytes) / 1e9;
+                    System.out.printf("%-12s %8d %,10.0f %16.3f %16.3f%n", mode, n, gb * 1e3 / seconds,
+                            (Assignment_1_Server.cpuNanos() - serverCpu) / 1e9 / gb, clientCpu / 1e9 / gb);
+                }
+            }
+        }
+    }
+
+    // n concurrent downloads; returns the CPU time the receiving threads used
+    private static long run(InetSocketAddress address, int n) throws Exception {
+        AtomicLong cpu = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            threads[i] = new Thread(() -> {
+                long cpuStart = Assignment_1_Server.threadCpuNanos();
+                try {
+                    Assignment_1_Client.receive(address, null);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+                cpu.addAndGet(Assignment_1_Server.threadCpuNanos() - cpuStart);
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        if (failures.get() > 0) throw new IOException(failures.get() + " downloads failed");
+        return cpu.get();
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request throughput of Assignment_2_server, run in-process on an ephemeral port:
+ * one connection per request (the original client), one kept-open connection waiting for
+ * each reply, and pipelined tagged requests with a bounded window of outstanding ones,
+ * over one and over several connections.
+ *
+ * javac -d out -sourcepath . benchmarks/CalculatorBenchmark.java
+ * java -Dchat.log.level=warn -cp out CalculatorBenchmark [requests] [connections]
+ */
+public class CalculatorBenchmark {
+    private static final int WINDOW = 256;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        ServerSocket serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread server = new Thread(() -> Assignment_2_server.serve(serverSocket), "calculator");
+        server.setDaemon(true);
+        server.start();
+        int port = serverSocket.getLocalPort();
+
+        // fresh connections are far slower and leave sockets in TIME_WAIT, so they get fewer requests
+        int perRequest = Math.min(requests, 5_000);
+        report("connection per request", perRequest, () -> connectionPerRequest(port, perRequest));
+        report("kept-open, request/reply", requests / 4, () -> requestReply(port, requests / 4));
+        report("pipelined, 1 connection", requests, () -> pipelined(port, requests, 1));
+        report("pipelined, " + connections + " connections", requests, () -> pipelined(port, requests, connections));
+        serverSocket.close();
+    }
+
+    private interface Run {
+        void run() throws Exception;
+    }
+
+    private static void report(String name, int requests, Run run) throws Exception {
+        // a short warm-up of the same shape
+        run.run();
+        long start = System.nanoTime();
+        run.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-28s %,10d requests  %8.2f s  %,12.0f requests/s  %8.1f us/request%n",
+                name, requests, seconds, requests / seconds, seconds * 1e6 / requests);
+    }
+
+    private static void connectionPerRequest(int port, int requests) throws IOException {
+        for (int i = 0; i < requests; i++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setTcpNoDelay(true);
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                out.write(i + "\n7\n*\n");
+                out.flush();
+                check(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine());
+            }
+        }
+    }
+
+    private static void requestReply(int port, int requests) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < requests; i++) {
+                out.write("#" + i + " " + i + " 7 *\n");
+                out.flush();
+                check(in.readLine());
+            }
+        }
+    }
+
+    // Each connection keeps up to WINDOW requests in flight; a reader thread per connection frees slots
+    private static void pipelined(int port, int requests, int connections) throws Exception {
+        CountDownLatch done = new CountDownLatch(connections);
+        AtomicLong failures = new AtomicLong();
+        for (int c = 0; c < connections; c++) {
+            int share = requests / connections + (c < requests % connections ? 1 : 0);
+            new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    socket.setTcpNoDelay(true);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+                    Semaphore window = new Semaphore(WINDOW);
+                    Thread reader = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < share; i++) {
+                                check(in.readLine());
+                                window.release();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    });
+                    reader.start();
+                    for (int i = 0; i < share; i++) {
+                        if (!window.tryAcquire()) {
+                            // out of slots: push out what is batched, then wait for replies
+                            out.flush();
+                            window.acquire();
+                        }
+                        out.write("#" + i + " " + i + " 7 *\n");
+                    }
+                    out.flush();
+                    reader.join();
+                } catch (IOException | InterruptedException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        if (failures.get() > 0) throw new IOException(failures.get() + " connections failed");
+    }
+
+    private static void check(String reply) throws IOException {
+        if (reply == null || reply.contains("Error")) throw new IOException("bad reply: " + reply);
+    }
+}
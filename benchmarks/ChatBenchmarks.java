@@ -0,0 +1,214 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the chat hot paths: writeUTF/readUTF encode and decode, room broadcast
+ * fan-out at several member counts (plus the old CopyOnWriteArrayList walk for comparison),
+ * and join/leave churn. Run with benchmarks/run.sh.
+ *
+ *   --filter REGEX      only benchmarks whose name matches
+ *   --warmup N --iterations N --time MS
+ *   --save FILE         write "name<TAB>ops/s" lines for a later --baseline
+ *   --baseline FILE     compare against saved numbers; exit 1 if any benchmark is slower
+ *   --tolerance F       allowed slowdown as a fraction, default 0.10
+ */
+public class ChatBenchmarks {
+    private static final String MESSAGE = "/127.0.0.1:53124: has anyone looked at the build failure on the release branch yet?";
+    private static final int[] FANOUT_SIZES = {10, 100, 1_000, 10_000};
+    private static final OutputStream DISCARD = OutputStream.nullOutputStream();
+
+    public static void main(String[] args) throws Exception {
+        String filter = ".*";
+        Path save = null;
+        Path baseline = null;
+        double tolerance = 0.10;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--filter": filter = args[++i]; break;
+                case "--warmup": Bench.warmupIterations = Integer.parseInt(args[++i]); break;
+                case "--iterations": Bench.measureIterations = Integer.parseInt(args[++i]); break;
+                case "--time": Bench.iterationMillis = Long.parseLong(args[++i]); break;
+                case "--save": save = Paths.get(args[++i]); break;
+                case "--baseline": baseline = Paths.get(args[++i]); break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Map<String, Bench.Op> benchmarks = new LinkedHashMap<>();
+        addCodecBenchmarks(benchmarks);
+        for (int n : FANOUT_SIZES) addFanoutBenchmarks(benchmarks, n);
+        addChurnBenchmarks(benchmarks, 1_000);
+
+        Pattern p = Pattern.compile(filter);
+        List<Bench.Result> results = new ArrayList<>();
+        for (Map.Entry<String, Bench.Op> e : benchmarks.entrySet()) {
+            if (!p.matcher(e.getKey()).find()) continue;
+            Bench.Result r = Bench.measure(e.getKey(), e.getValue());
+            System.out.println(r);
+            results.add(r);
+        }
+
+        if (save != null) {
+            List<String> lines = new ArrayList<>();
+            for (Bench.Result r : results) lines.add(r.name + "\t" + r.opsPerSec);
+            Files.write(save, lines);
+        }
+        if (baseline != null && !compare(results, baseline, tolerance)) System.exit(1);
+    }
+
+    private static void addCodecBenchmarks(Map<String, Bench.Op> benchmarks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bytes);
+        benchmarks.put("utf.encode.writeUTF", () -> {
+            bytes.reset();
+            dout.writeUTF(MESSAGE);
+            Bench.consume(bytes.size());
+        });
+        benchmarks.put("utf.encode.chatFrame", () -> Bench.consume(ChatFrame.encodeUtf(MESSAGE)));
+
+        byte[] encoded = ChatFrame.encodeUtf(MESSAGE);
+        benchmarks.put("utf.decode.readUTF", () ->
+                Bench.consume(new DataInputStream(new ByteArrayInputStream(encoded)).readUTF()));
+
+        byte[] v2 = ChatProtocol.encode(ChatProtocol.CHAT, 1, 0, MESSAGE);
+        benchmarks.put("v2.encode", () -> Bench.consume(ChatProtocol.encode(ChatProtocol.CHAT, 1, 0, MESSAGE)));
+        benchmarks.put("v2.decode", () -> Bench.consume(ChatProtocol.decode(v2, 4, v2.length - 4)));
+    }
+
+    private static void addFanoutBenchmarks(Map<String, Bench.Op> benchmarks, int members) {
+        MyChatAppServer server = new MyChatAppServer();
+        List<NullSession> sessions = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            NullSession s = new NullSession(server.newSessionId());
+            server.addClient(s);
+            server.onJoin(s);
+            sessions.add(s);
+        }
+        benchmarks.put("broadcast.room/members=" + members, () ->
+                server.broadcast(MyChatAppServer.DEFAULT_ROOM, ChatFrame.of(ChatProtocol.CHAT, 0, MESSAGE), null));
+
+        // the pre-rooms fan-out: every client in one CopyOnWriteArrayList
+        List<ChatSession> cow = new CopyOnWriteArrayList<>(sessions);
+        benchmarks.put("broadcast.cowList/members=" + members, () -> {
+            ChatFrame frame = ChatFrame.of(ChatProtocol.CHAT, 0, MESSAGE);
+            for (ChatSession c : cow) c.send(frame.retain());
+            frame.release();
+        });
+    }
+
+    // One client hopping between two rooms while the default room holds `members` others
+    private static void addChurnBenchmarks(Map<String, Bench.Op> benchmarks, int members) {
+        MyChatAppServer server = new MyChatAppServer();
+        for (int i = 0; i < members; i++) {
+            NullSession s = new NullSession(server.newSessionId());
+            server.addClient(s);
+            server.onJoin(s);
+        }
+        NullSession hopper = new NullSession(server.newSessionId());
+        server.addClient(hopper);
+        server.onJoin(hopper);
+        benchmarks.put("churn.joinLeave/members=" + members, () -> {
+            server.onFrame(hopper, ChatProtocol.CONTROL, "join dev");
+            server.onFrame(hopper, ChatProtocol.CONTROL, "leave");
+        });
+
+        // connect and disconnect of a fresh client into the same room
+        benchmarks.put("churn.connect/members=" + members, () -> {
+            NullSession s = new NullSession(server.newSessionId());
+            server.addClient(s);
+            server.onJoin(s);
+            server.removeClient(s);
+        });
+    }
+
+    private static boolean compare(List<Bench.Result> results, Path baseline, double tolerance) throws IOException {
+        Map<String, Double> expected = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(baseline)) {
+            String[] parts = line.split("\t");
+            if (parts.length == 2) expected.put(parts[0], Double.parseDouble(parts[1]));
+        }
+        boolean ok = true;
+        for (Bench.Result r : results) {
+            Double base = expected.get(r.name);
+            if (base == null) continue;
+            double change = r.opsPerSec / base - 1;
+            boolean regressed = change < -tolerance;
+            System.out.printf("%-40s %+6.1f%% vs baseline%s%n", r.name, 100 * change, regressed ? "  REGRESSION" : "");
+            ok &= !regressed;
+        }
+        return ok;
+    }
+
+    // A session whose socket is a discarding stream: measures queueing and encoding, not the network
+    private static final class NullSession implements ChatSession {
+        private final long id;
+        private volatile String room;
+
+        NullSession(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getClientName() {
+            return "bench-" + id;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getRoom() {
+            return room;
+        }
+
+        @Override
+        public void setRoom(String room) {
+            this.room = room;
+        }
+
+        @Override
+        public void send(ChatFrame frame) throws IOException {
+            try {
+                frame.writeTo(DISCARD, false);
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public int queuedFrames() {
+            return 0;
+        }
+
+        @Override
+        public long lastReadNanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public boolean answersHeartbeats() {
+            return true;
+        }
+
+        @Override
+        public void closeSilently() {}
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * CPU versus bandwidth for compressed v2 frames. For a few kinds of payload and zlib levels
+ * it reports the server's one-off cost to deflate a broadcast, each recipient's cost to
+ * inflate it, the bytes saved per recipient, and the link speed below which compression
+ * pays for itself (deflate + inflate time against the time the saved bytes take to send).
+ *
+ * javac -d out -sourcepath . benchmarks/CompressionBenchmark.java
+ * java -cp out CompressionBenchmark [recipients]
+ */
+public class CompressionBenchmark {
+    private static final int[] LEVELS = {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION};
+
+    public static void main(String[] args) throws Exception {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        Bench.warmupIterations = 2;
+        Bench.measureIterations = 3;
+        Bench.iterationMillis = 500;
+
+        String[][] payloads = {
+                {"chat line", "/127.0.0.1:53124: has anyone looked at the build failure on the release branch yet?"},
+                {"log paste 4KB", logPaste(4 << 10)},
+                {"log paste 64KB", logPaste(64 << 10)},
+                {"source 16KB", source(16 << 10)},
+                {"random 4KB", random(4 << 10)},
+        };
+        System.out.printf("threshold chat.compressMin=%d bytes, %d recipients per broadcast%n%n",
+                ChatProtocol.COMPRESS_MIN, recipients);
+        System.out.printf("%-15s %5s %8s %8s %6s %12s %12s %14s %16s %14s%n", "payload", "level", "bytes", "wire",
+                "ratio", "deflate us", "inflate us", "saved/recip", "saved/broadcast", "break-even");
+        for (String[] p : payloads) {
+            byte[] plain = ChatProtocol.encode(ChatProtocol.CHAT, 1, 0, p[1]);
+            for (int level : LEVELS) report(p[0], plain, level, recipients);
+        }
+    }
+
+    private static void report(String name, byte[] plain, int level, int recipients) throws Exception {
+        Deflater deflater = new Deflater(level);
+        byte[] packed;
+        double deflateNs;
+        try {
+            packed = compress(deflater, plain);
+            deflateNs = 1e9 / Bench.measure("deflate", () -> Bench.consume(compress(deflater, plain))).opsPerSec;
+        } finally {
+            deflater.end();
+        }
+        double inflateNs = packed == plain ? 0
+                : 1e9 / Bench.measure("inflate", () -> Bench.consume(ChatProtocol.decode(packed, 4, packed.length - 4))).opsPerSec;
+        long saved = plain.length - packed.length;
+        // MB/s at which sending the saved bytes takes as long as compressing and inflating them
+        String breakEven = saved <= 0 ? "never" : String.format("%.0f MB/s", saved / ((deflateNs + inflateNs) / 1e9) / 1e6);
+        System.out.printf("%-15s %5d %8d %8d %6.2f %12.1f %12.1f %14d %16s %14s%n", name, level, plain.length,
+                packed.length, plain.length / (double) packed.length, deflateNs / 1e3, inflateNs / 1e3, saved,
+                String.format("%,d", saved * recipients), breakEven);
+    }
+
+    // ChatProtocol.compress at an arbitrary level
+    private static byte[] compress(Deflater d, byte[] frame) {
+        int bodyLen = frame.length - 4 - ChatProtocol.HEADER;
+        if (bodyLen < ChatProtocol.COMPRESS_MIN) return frame;
+        d.reset();
+        d.setInput(frame, 4 + ChatProtocol.HEADER, bodyLen);
+        d.finish();
+        byte[] out = new byte[frame.length];
+        int n = 4 + ChatProtocol.HEADER;
+        while (!d.finished() && n < out.length) n += d.deflate(out, n, out.length - n);
+        if (!d.finished() || n >= frame.length) return frame;
+        int len = n - 4;
+        out[0] = (byte) (len >>> 24);
+        out[1] = (byte) (len >>> 16);
+        out[2] = (byte) (len >>> 8);
+        out[3] = (byte) len;
+        System.arraycopy(frame, 4, out, 4, ChatProtocol.HEADER);
+        out[4] |= ChatProtocol.COMPRESSED;
+        return Arrays.copyOf(out, n);
+    }
+
+    // Stack-trace-like text, the kind of thing users paste into a room
+    private static String logPaste(int size) {
+        Random rnd = new Random(42);
+        String[] levels = {"INFO ", "DEBUG", "WARN ", "ERROR"};
+        String[] classes = {"ChatNioEngine", "MyChatAppServer", "ChatFederation", "ChatJournal", "ChatRooms"};
+        StringBuilder sb = new StringBuilder(size + 200);
+        while (sb.length() < size) {
+            sb.append("2026-10-17 12:").append(10 + rnd.nextInt(50)).append(':').append(10 + rnd.nextInt(50))
+                    .append('.').append(100 + rnd.nextInt(900)).append(' ').append(levels[rnd.nextInt(4)])
+                    .append(" [chat-io-").append(rnd.nextInt(8)).append("] ")
+                    .append(classes[rnd.nextInt(classes.length)]).append(": connection /10.0.")
+                    .append(rnd.nextInt(256)).append('.').append(rnd.nextInt(256)).append(':')
+                    .append(40000 + rnd.nextInt(20000)).append(" queued ").append(rnd.nextInt(4096))
+                    .append(" frames\n");
+        }
+        return sb.substring(0, size);
+    }
+
+    private static String source(int size) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) sb.append(new String(Files.readAllBytes(Paths.get("ChatNioEngine.java")), StandardCharsets.UTF_8));
+        return sb.substring(0, size);
+    }
+
+    // Printable but incompressible-ish, like an encoded key or a blob of base64
+    private static String random(int size) {
+        Random rnd = new Random(7);
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) sb.append((char) (33 + rnd.nextInt(94)));
+        return sb.toString();
+    }
+}
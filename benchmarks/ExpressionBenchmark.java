@@ -0,0 +1,43 @@
+import java.util.Scanner;
+
+/**
+ * Cost of one calculator request on the server, without the socket: the original "a b op"
+ * request read with Scanner.nextInt and with split and parseInt, then an expression request
+ * with variable values whose formula misses the server's compiled-expression cache every time,
+ * the same request with a formula that hits it, and the compiled tree evaluated by itself.
+ * A last case is a constant expression, whose cached entry is its result.
+ *
+ * javac -d out -sourcepath .:benchmarks benchmarks/ExpressionBenchmark.java
+ * java -cp out ExpressionBenchmark
+ */
+public class ExpressionBenchmark {
+    public static void main(String[] args) throws Exception {
+        String formula = "(a+b)*c/d - a*a/(b+1)";
+        Expression expression = Expression.compile(formula);
+        double[] values = {1, 2, 3, 4};
+        int[] counter = new int[1];
+
+        System.out.println(Bench.measure("a b op, Scanner.nextInt", () -> {
+            Scanner tokens = new Scanner(++counter[0] + " 7 *");
+            Bench.consume(Assignment_2_server.calculate(tokens.nextInt(), tokens.nextInt(), tokens.next()));
+        }));
+        System.out.println(Bench.measure("a b op, split + parseInt", () -> {
+            String[] tokens = (++counter[0] + " 7 *").split("\\s+");
+            Bench.consume(Assignment_2_server.calculate(tokens[0], tokens[1], tokens[2]));
+        }));
+        System.out.println(Bench.measure("expression request, cache miss", () -> {
+            // a formula never seen before, so it is compiled and pushes another out of the cache
+            Bench.consume(Assignment_2_server.evaluate("(a+b)*c/d - a*a/(b+" + ++counter[0] + "); a=1 b=2 c=3 d=4"));
+        }));
+        System.out.println(Bench.measure("expression request, cache hit", () -> {
+            Bench.consume(Assignment_2_server.evaluate(formula + "; a=" + ++counter[0] + " b=2 c=3 d=4"));
+        }));
+        System.out.println(Bench.measure("expression, compiled tree only", () -> {
+            values[0] = ++counter[0];
+            Bench.consume(Double.doubleToLongBits(expression.evaluate(values)));
+        }));
+        System.out.println(Bench.measure("constant expression request, cached", () -> {
+            Bench.consume(Assignment_2_server.evaluate("2*(3+4)/7 - 1.5"));
+        }));
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Sustained ChatJournal append rate: several producer threads append chat-sized frames
+ * while the journal thread group-commits them to mapped segments; the clock stops once
+ * close() has forced the last batch. Then measures replay speed of the same segments.
+ *
+ * javac -d out -sourcepath . benchmarks/JournalBenchmark.java
+ * java -cp out JournalBenchmark [dir] [messages] [producers]
+ */
+public class JournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("chat-journal");
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        String text = "/127.0.0.1:53124: has anyone looked at the build failure on the release branch yet?";
+
+        ChatJournal journal = ChatJournal.open(dir, 64 << 20, 64, Integer.MAX_VALUE, e -> {});
+        CountDownLatch done = new CountDownLatch(producers);
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                for (int i = 0; i < messages / producers; i++) {
+                    journal.append("lobby", ChatFrame.of(ChatProtocol.CHAT, 1, text));
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        journal.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("appended+synced %,d msgs in %.2f s: %,.0f msgs/s (dropped %d)%n",
+                journal.written(), seconds, journal.written() / seconds, journal.dropped());
+
+        long[] replayed = new long[1];
+        start = System.nanoTime();
+        ChatJournal.open(dir, 64 << 20, 64, Integer.MAX_VALUE, e -> replayed[0]++).close();
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("replayed %,d msgs in %.2f s: %,.0f msgs/s%n", replayed[0], seconds, replayed[0] / seconds);
+        cleanup(dir);
+    }
+
+    private static void cleanup(Path dir) throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+}
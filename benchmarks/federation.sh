@@ -0,0 +1,27 @@
+#!/bin/sh
+# Starts NODES (default 3) federated MyChatAppServer processes on localhost, client ports 1333,
+# 1334, ... and peer ports 2333, 2334, ..., then spreads the load generator's clients over all of
+# them. Every message must reach every other client, wherever it is connected:
+#   NODES=3 benchmarks/federation.sh --clients 90 --rate 300 --duration 10
+set -e
+cd "$(dirname "$0")/.."
+OUT=${OUT:-out/federation}
+NODES=${NODES:-3}
+mkdir -p "$OUT"
+javac -d "$OUT" -sourcepath . MyChatAppServer.java MyChatAppLoadGenerator.java
+PIDS=""
+PORTS=""
+PEERS=""
+trap 'kill $PIDS 2>/dev/null' EXIT
+i=0
+while [ "$i" -lt "$NODES" ]; do
+    # each node dials the ones started before it, which makes a full mesh
+    java $SERVER_OPTS -Dchat.port=$((1333 + i)) -Dchat.peerPort=$((2333 + i)) -Dchat.nodeId=node$i \
+        -Dchat.peers="$PEERS" -cp "$OUT" MyChatAppServer > "$OUT/node$i.log" 2>&1 &
+    PIDS="$PIDS $!"
+    PORTS="$PORTS${PORTS:+,}$((1333 + i))"
+    PEERS="$PEERS${PEERS:+,}localhost:$((2333 + i))"
+    i=$((i + 1))
+done
+sleep 2
+java -cp "$OUT" MyChatAppLoadGenerator --ports "$PORTS" "$@"
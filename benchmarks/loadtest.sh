@@ -0,0 +1,14 @@
+#!/bin/sh
+# Starts MyChatAppServer on localhost, drives it with MyChatAppLoadGenerator and exits with the
+# generator's status, for CI. Server options go in SERVER_OPTS, generator options as arguments:
+#   SERVER_OPTS=-Dchat.engine=nio benchmarks/loadtest.sh --clients 200 --rate 500 --max-p99-ms 50
+set -e
+cd "$(dirname "$0")/.."
+OUT=${OUT:-out/loadtest}
+mkdir -p "$OUT"
+javac -d "$OUT" -sourcepath . MyChatAppServer.java MyChatAppLoadGenerator.java
+java $SERVER_OPTS -cp "$OUT" MyChatAppServer > "$OUT/server.log" 2>&1 &
+SERVER=$!
+trap 'kill $SERVER 2>/dev/null' EXIT
+sleep 1
+java -cp "$OUT" MyChatAppLoadGenerator "$@"
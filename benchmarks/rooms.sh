@@ -0,0 +1,35 @@
+#!/bin/sh
+# Starts MyChatAppServer on localhost and checks that room commands typed into myChatApp_client
+# work over a v2 connection: one client joins "dev" and talks there, another stays in the lobby
+# and must not hear it. Exits non-zero on the first failed check, for CI:
+#   SERVER_OPTS=-Dchat.engine=nio benchmarks/rooms.sh
+set -e
+cd "$(dirname "$0")/.."
+OUT=${OUT:-out/rooms}
+mkdir -p "$OUT"
+javac -d "$OUT" -sourcepath . MyChatAppServer.java myChatApp_client.java
+java $SERVER_OPTS -cp "$OUT" MyChatAppServer > "$OUT/server.log" 2>&1 &
+SERVER=$!
+trap 'kill $SERVER 2>/dev/null' EXIT
+sleep 1
+(sleep 3; echo exit) | java -cp "$OUT" myChatApp_client > "$OUT/lobby.log" 2>&1 &
+LOBBY=$!
+(sleep 1; echo "/join dev"; sleep 1; echo "/rooms"; echo "only for dev"; sleep 1; echo exit) \
+    | java -cp "$OUT" myChatApp_client > "$OUT/dev.log" 2>&1
+wait $LOBBY
+
+check() {
+    if ! grep -q "$2" "$OUT/$1.log"; then
+        echo "FAIL: $1 client never printed \"$2\"" >&2
+        exit 1
+    fi
+}
+check dev "Using chat protocol v"
+check dev "Server: You are in room dev."
+check dev "Server: Rooms: .*dev"
+check lobby "Server: You are in room lobby."
+if grep -q "only for dev" "$OUT/lobby.log"; then
+    echo "FAIL: a message sent in dev reached the lobby" >&2
+    exit 1
+fi
+echo "rooms: ok"
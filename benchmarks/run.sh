@@ -0,0 +1,11 @@
+#!/bin/sh
+# Compiles the chat sources with the benchmark suite and runs it. Arguments go to ChatBenchmarks:
+#   benchmarks/run.sh --save main.txt                       record numbers on the main branch
+#   benchmarks/run.sh --baseline main.txt --tolerance 0.1   fail if anything got >10% slower
+set -e
+cd "$(dirname "$0")/.."
+OUT=${OUT:-out/benchmarks}
+mkdir -p "$OUT"
+javac -d "$OUT" -sourcepath . benchmarks/*.java
+# connection churn would otherwise benchmark the logger
+exec java -Xms1g -Xmx1g -XX:+UseParallelGC -Dchat.log.level=off -cp "$OUT" ChatBenchmarks "$@"
@@ -15,13 +15,31 @@ public class myChatApp_client {
              DataOutputStream dout = new DataOutputStream(socket.getOutputStream());
              Scanner scanner = new Scanner(System.in)) {
 
+            // Ask for the binary protocol; servers that don't know it keep talking writeUTF
+            boolean v2 = ChatProtocol.negotiate(socket, dis, dout, early -> System.out.println("Server: " + early));
+            System.out.println(v2 ? "Using chat protocol v" + ChatProtocol.VERSION : "Using legacy protocol");
+
             // Reader thread: listens for messages from the server
             Thread reader = new Thread(() -> {
                 try {
                     while (true) {
-                        String incoming = dis.readUTF();
-                        System.out.println("Server: " + incoming);
-                        if ("exit".equalsIgnoreCase(incoming.trim())) {
+                        boolean exit;
+                        if (v2) {
+                            ChatProtocol.Message frame = ChatProtocol.read(dis);
+                            if (frame.type == ChatProtocol.HEARTBEAT) {
+                                // each frame is a single write, so this cannot split one of the user's
+                                ChatProtocol.write(dout, ChatProtocol.HEARTBEAT, "");
+                                dout.flush();
+                                continue;
+                            }
+                            System.out.println("Server: " + frame.payload);
+                            exit = frame.type == ChatProtocol.CONTROL && "exit".equalsIgnoreCase(frame.payload.trim());
+                        } else {
+                            String incoming = dis.readUTF();
+                            System.out.println("Server: " + incoming);
+                            exit = "exit".equalsIgnoreCase(incoming.trim());
+                        }
+                        if (exit) {
                             System.out.println("Server requested exit. Closing reader.");
                             break;
                         }
@@ -36,9 +54,17 @@ public class myChatApp_client {
             System.out.println("Type messages and press Enter. Type 'exit' to quit.");
             while (true) {
                 String line = scanner.nextLine();
-                dout.writeUTF(line);
+                boolean exit = "exit".equalsIgnoreCase(line.trim());
+                if (v2) {
+                    // "/join dev" and the like go as commands; a legacy server parses them itself
+                    String command = ChatProtocol.command(line);
+                    if (command != null) ChatProtocol.write(dout, ChatProtocol.CONTROL, command);
+                    else ChatProtocol.write(dout, ChatProtocol.CHAT, line);
+                } else {
+                    dout.writeUTF(line);
+                }
                 dout.flush();
-                if ("exit".equalsIgnoreCase(line.trim())) {
+                if (exit) {
                     System.out.println("Exiting client.");
                     break;
                 }